@@ -0,0 +1,108 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An expression that Parser.compile() has split into statements, tokenized, and converted to RPN
+ * once. Each statement is then compiled to a tree of nodes with operators and array references
+ * already resolved; the few statements that cannot be expressed as a tree are evaluated from
+ * their RPN tokens instead. Subexpressions the statements repeat, such as UPPER(TRIM(@country))
+ * used by several rules, are evaluated once per evaluation (see SharedSubexpressions).
+ * Evaluation never modifies the compiled statements, so an instance can be evaluated any number
+ * of times, and from several threads at once when each thread supplies its own EvaluationContext.
+ * The values the tree holds have their views derived when it is built, and the state the nodes
+ * keep between evaluations is volatile or, like a token's text, recomputed identically by a thread
+ * that does not see it.
+ *
+ * Functions, constants, and operators are resolved against the parser that compiled the
+ * expression; that parser must not be reconfigured while other threads are evaluating.
+ */
+public final class CompiledExpression {
+    private final Parser parser;
+    private final String source;
+    private final List<Statement> statements;
+    private final int sharedCount;
+    private final int frameSize;
+
+    CompiledExpression(Parser parser, String source, List<Statement> statements) {
+        SharedSubexpressions shared = new SharedSubexpressions(parser);
+        this.parser = parser;
+        this.source = source;
+        this.statements = Collections.unmodifiableList(new ArrayList<>(shared.share(statements)));
+        this.sharedCount = shared.size();
+        this.frameSize = sharedCount > 0 ? shared.getVariableCount() : 0;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    public Parser getParser() {
+        return parser;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    List<Statement> getStatements() {
+        return statements;
+    }
+
+    int getSharedCount() {
+        return sharedCount;
+    }
+
+    /*
+     * False once the parser's settings have changed since the statements were compiled.
+     */
+    boolean isCurrent() {
+        for (Statement statement : statements) {
+            if (!statement.isCurrent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /**
+     * Evaluate against the parser's own variables. Like Parser.eval(), this is not thread-safe.
+     */
+    public Value eval() {
+        return eval(parser.getContext());
+    }
+
+    /**
+     * Evaluate with the variables and field source held by the context. Errors are returned as a
+     * Value wrapping the ParserException, which is also available from context.getLastException().
+     */
+    public Value eval(EvaluationContext context) {
+        context.setLastException(null);
+        Value value = new Value(Parser.EMPTY_EXPRESSION);
+
+        // Subexpressions repeated by the statements are evaluated at most once per evaluation
+        context.enterExpression(frameSize, sharedCount);
+        try {
+            for (Statement statement : statements) {
+                value = statement.eval(context);
+            }
+        } catch (ParserException ex) {
+            context.setLastException(ex);
+            value = new Value().setValue(ex);
+        } finally {
+            context.exit();
+        }
+
+        return value;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+}
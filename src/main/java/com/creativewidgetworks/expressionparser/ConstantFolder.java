@@ -0,0 +1,39 @@
+package com.creativewidgetworks.expressionparser;
+
+/**
+ * Evaluates constant subexpressions while NodeCompiler turns a statement's RPN into a tree:
+ * operators whose operands are literals, constants such as PI, and calls to deterministic
+ * functions with literal arguments. Each is replaced by a Node.Folded holding the token it
+ * produced, so @amount * (1 + 0.075) > 100 * 12 is evaluated as @amount * 1.075 > 1200.
+ *
+ * A subexpression that fails is left as is so that the error is still reported when, and if,
+ * the statement is evaluated.
+ */
+final class ConstantFolder {
+    private final Parser parser;
+    private final EvaluationContext context;
+
+    ConstantFolder(Parser parser) {
+        this.parser = parser;
+
+        // Folded nodes have no access to variables or fields; this context only satisfies the signature
+        this.context = new EvaluationContext(parser);
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    Node fold(Node node) {
+        if (!node.isFoldable()) {
+            return node;
+        }
+
+        int configurationVersion = parser.getConfigurationVersion();
+        try {
+            Token result = node.eval(context);
+            return result == null ? node : new Node.Folded(parser, result, node, configurationVersion);
+        } catch (ParserException | RuntimeException ex) {
+            return node;
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-evaluation state: the variables an expression reads and assigns, an optional field source,
+ * and the outcome of the last evaluation.
+ *
+ * While a compiled statement is evaluated, the variables it references are also held in a frame
+ * indexed by slot, so each is looked up by name at most once per evaluation. Variables should be
+ * replaced or removed through addVariable(), clearVariable(), and clearVariables(), which keep the
+ * frame up to date, rather than through the map returned by getVariables().
+ *
+ * The frames, the shared results, and the tokens in which the nodes of compiled statements return
+ * their results are kept for each level of nesting (a function may evaluate another expression with
+ * the same context) and reused by the following evaluations, so evaluating a compiled statement of
+ * arithmetic and comparisons allocates little beyond the numbers it computes.
+ *
+ * A CompiledExpression is never modified by evaluation, so it may be shared between threads as
+ * long as each thread evaluates it with its own EvaluationContext. Contexts are not thread-safe.
+ */
+public class EvaluationContext {
+    private final Parser parser;
+    private final Map<String, Value> variables;
+
+    private FieldInterface fieldInterface;
+    private ParserException lastException;
+
+    // Arguments of the function calls in progress when evaluating compiled node trees
+    private OperandStack operandStack;
+
+    // Results of the subexpressions shared between the statements of the script being evaluated
+    private Token[] sharedValues;
+
+    // Variables referenced by the script being evaluated, indexed by the slots NodeCompiler assigned
+    private Value[] frame;
+
+    // Result tokens of the statement being evaluated, indexed by the slots NodeCompiler assigned
+    private Token[] results;
+
+    // Arrays reused by the expressions and statements being evaluated, one per level of nesting
+    private Scratch[] levels = new Scratch[0];
+    private int depth;
+
+    private static final class Scratch {
+        Value[] frame;
+        Token[] results;
+        Token[] sharedValues;
+
+        // The arrays of the enclosing level, restored by exit()
+        Value[] savedFrame;
+        Token[] savedResults;
+        Token[] savedSharedValues;
+    }
+
+    // Set while the branches of a ternary are evaluated so the unused branch cannot fail the expression
+    boolean suppressParseExceptions;
+
+    public EvaluationContext(Parser parser) {
+        this(parser, new TreeMap<String, Value>());
+    }
+
+    EvaluationContext(Parser parser, Map<String, Value> variables) {
+        this.parser = parser;
+        this.variables = variables;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    public Parser getParser() {
+        return parser;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /**
+     * Returns the field source for this context, falling back to the parser's when none was set.
+     */
+    public FieldInterface getFieldInterface() {
+        return fieldInterface != null ? fieldInterface : parser.getFieldInterface();
+    }
+
+    public FieldInterface setFieldInterface(FieldInterface fieldInterface) {
+        FieldInterface oldValue = this.fieldInterface;
+        this.fieldInterface = fieldInterface;
+        return oldValue;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    public ParserException getLastException() {
+        return lastException;
+    }
+
+    void setLastException(ParserException lastException) {
+        this.lastException = lastException;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    OperandStack getOperandStack() {
+        if (operandStack == null) {
+            operandStack = new OperandStack(this);
+        }
+        return operandStack;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    Token[] getSharedValues() {
+        return sharedValues;
+    }
+
+    /**
+     * Discard the shared results in the slots given, or all of them when slots is null.
+     */
+    void invalidateSharedValues(int[] slots) {
+        if (sharedValues != null) {
+            if (slots == null) {
+                Arrays.fill(sharedValues, null);
+            } else {
+                for (int slot : slots) {
+                    if (slot < sharedValues.length) {
+                        sharedValues[slot] = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /*
+     * Begin evaluating a compiled expression: a cleared frame of frameSize slots, or none, and
+     * sharedCount shared results, or none. Must be followed by exit().
+     */
+    void enterExpression(int frameSize, int sharedCount) {
+        Scratch level = enter();
+        frame = frameSize > 0 ? level.frame = clear(level.frame, frameSize) : null;
+        sharedValues = sharedCount > 0 ? level.sharedValues = clear(level.sharedValues, sharedCount) : null;
+    }
+
+    /*
+     * Begin evaluating a compiled statement: a cleared frame of frameSize slots, or the enclosing
+     * expression's frame when frameSize is 0, and resultCount result tokens. Must be followed by exit().
+     */
+    void enterStatement(int frameSize, int resultCount) {
+        Scratch level = enter();
+        if (frameSize > 0) {
+            frame = level.frame = clear(level.frame, frameSize);
+        }
+        if (level.results == null || level.results.length < resultCount) {
+            level.results = level.results == null ? new Token[resultCount] : Arrays.copyOf(level.results, resultCount);
+        }
+        results = level.results;
+    }
+
+    void exit() {
+        Scratch level = levels[--depth];
+        frame = level.savedFrame;
+        results = level.savedResults;
+        sharedValues = level.savedSharedValues;
+        level.savedFrame = null;
+        level.savedResults = null;
+        level.savedSharedValues = null;
+    }
+
+    private Scratch enter() {
+        if (depth == levels.length) {
+            levels = Arrays.copyOf(levels, depth + 4);
+        }
+        Scratch level = levels[depth];
+        if (level == null) {
+            level = levels[depth] = new Scratch();
+        }
+        depth++;
+        level.savedFrame = frame;
+        level.savedResults = results;
+        level.savedSharedValues = sharedValues;
+        return level;
+    }
+
+    private static Value[] clear(Value[] frame, int size) {
+        if (frame == null || frame.length < size) {
+            return new Value[size];
+        }
+        Arrays.fill(frame, 0, size, null);
+        return frame;
+    }
+
+    private static Token[] clear(Token[] values, int size) {
+        if (values == null || values.length < size) {
+            return new Token[size];
+        }
+        Arrays.fill(values, 0, size, null);
+        return values;
+    }
+
+    /*
+     * The token in which the node holding the result slot returns its results during the current
+     * statement's evaluation. Outside a compiled statement, e.g. while ConstantFolder evaluates
+     * nodes, every result gets a token of its own.
+     */
+    Token getResultToken(int slot) {
+        if (results == null || slot < 0 || slot >= results.length) {
+            return Token.scratch();
+        }
+        Token token = results[slot];
+        if (token == null) {
+            token = results[slot] = Token.scratch();
+        }
+        return token;
+    }
+
+    /**
+     * Returns the variable in the slot, looking it up by its folded name, and creating it if need be,
+     * the first time the slot is used in an evaluation or after variables have been replaced or removed.
+     */
+    Value resolveVariable(int slot, String symbol) {
+        boolean inFrame = frame != null && slot >= 0 && slot < frame.length;
+        Value value = inFrame ? frame[slot] : null;
+        if (value == null) {
+            value = variables.get(symbol);
+            if (value == null) {
+                value = new Value();
+                variables.put(symbol, value);
+            }
+            if (inFrame) {
+                frame[slot] = value;
+            }
+        }
+        return value;
+    }
+
+    private void invalidateFrame() {
+        if (frame != null) {
+            Arrays.fill(frame, null);
+        }
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    String foldName(String name) {
+        return parser.foldName(name);
+    }
+
+    public void addVariable(String name, Value value) {
+        if (name != null && value != null) {
+            Value oldValue = variables.put(foldName(name), value);
+            if (oldValue != null && oldValue != value) {
+                invalidateFrame();
+            }
+        }
+    }
+
+    public void clearVariable(String name) {
+        Value value = name == null ? null : variables.remove(foldName(name));
+        if (value != null) {
+            value.release();
+            invalidateFrame();
+        }
+    }
+
+    public void clearVariables() {
+        for (Value value : variables.values()) {
+            value.release();
+        }
+        variables.clear();
+        invalidateFrame();
+    }
+
+    public Value getVariable(String name) {
+        return name == null ? null : variables.get(foldName(name));
+    }
+
+    public Map<String, Value> getVariables() {
+        return variables;
+    }
+
+}
@@ -1,17 +1,75 @@
 package com.creativewidgetworks.expressionparser;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class Function {
+
+    /*
+     * Typed function bodies for Function.number(), Function.string(), and Function.varargs(). The
+     * arguments are taken off the stack and converted for them; a null argument is passed as null.
+     */
+
+    public interface NumberFunction1 {
+        BigDecimal apply(BigDecimal a) throws ParserException;
+    }
+
+    public interface NumberFunction2 {
+        BigDecimal apply(BigDecimal a, BigDecimal b) throws ParserException;
+    }
+
+    public interface StringFunction1 {
+        String apply(String a) throws ParserException;
+    }
+
+    public interface StringFunction2 {
+        String apply(String a, String b) throws ParserException;
+    }
+
+    /*
+     * The arguments are the values the function was called with, which may be variables; they should
+     * not be modified.
+     */
+    public interface VarargsFunction {
+        Value apply(Value... arguments) throws ParserException;
+    }
+
+    /*
+     * Adapts a typed function body to the handler contract.
+     */
+    abstract static class Adapter {
+        public abstract Value invoke(Token function, Stack<Token> stack) throws ParserException;
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    // The handler methods of each class by name, looked up once rather than for every Function
+    private static final ClassValue<ConcurrentMap<String, MethodHandle>> HANDLERS = new ClassValue<ConcurrentMap<String, MethodHandle>>() {
+        @Override
+        protected ConcurrentMap<String, MethodHandle> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
     private final String functionName;
     private final int minArgs;
     private final int maxArgs;
 
-    private final Object javaInstance;
-    private final Method javaMethod;
+    // The handler method bound to its instance, typed (Token, Stack)Value
+    private final MethodHandle invoker;
     private final ValueType[] parameters;
 
+    private boolean deterministic;
+    private boolean pure;
+    private ValueType resultType;
+
     public Function(String functionName, Object instance, String methodName, int minArgs, int maxArgs, ValueType... types) {
         this.functionName = functionName;
 
@@ -19,48 +77,198 @@ public class Function {
         this.maxArgs = maxArgs;
         this.parameters = types;
 
-        this.javaInstance = instance;
-
         String className = instance.getClass().getName();
 
         try {
-            javaMethod = instance.getClass().getMethod(methodName, Token.class, Stack.class);
+            this.invoker = bind(handler(instance.getClass(), methodName), instance);
         } catch (NoSuchMethodException ex) {
             throw new IllegalStateException("Init " + className + " NoSuchMethodException " + methodName, ex);
-        } catch (SecurityException ex) {
+        } catch (IllegalAccessException | SecurityException ex) {
             throw new IllegalStateException("Init " + className + " " + methodName, ex);
         }
     }
 
+    /*
+     * The handle of the handler method of the class, taking the instance first unless it is static.
+     */
+    private static MethodHandle handler(Class<?> type, String methodName) throws NoSuchMethodException, IllegalAccessException {
+        ConcurrentMap<String, MethodHandle> handlers = HANDLERS.get(type);
+        MethodHandle handle = handlers.get(methodName);
+        if (handle == null) {
+            Method method = type.getMethod(methodName, Token.class, Stack.class);
+            if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                // e.g. a public method of an anonymous class
+                method.setAccessible(true);
+            }
+
+            handle = MethodHandles.lookup().unreflect(method);
+            if (Modifier.isStatic(method.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            handlers.putIfAbsent(methodName, handle);
+        }
+        return handle;
+    }
+
+    /*
+     * Create the handle the function is invoked through, which unlike Method.invoke() neither wraps
+     * the arguments in an array nor the handler's exceptions in an InvocationTargetException.
+     */
+    private static MethodHandle bind(MethodHandle handler, Object instance) {
+        return handler.bindTo(instance).asType(MethodType.methodType(Value.class, Token.class, Stack.class));
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    /**
+     * A function of one NUMBER, e.g. parser.addFunction(Function.number("TAX", amount -> amount.multiply(RATE)))
+     */
+    public static Function number(String functionName, final NumberFunction1 body) {
+        Adapter adapter = new Adapter() {
+            @Override
+            public Value invoke(Token function, Stack<Token> stack) throws ParserException {
+                BigDecimal a = stack.pop().asNumber();
+                return new Value(function.getText()).setValue(body.apply(a));
+            }
+        };
+        return new Function(functionName, adapter, "invoke", 1, 1, ValueType.NUMBER).setResultType(ValueType.NUMBER);
+    }
+
+    /**
+     * A function of two NUMBERs.
+     */
+    public static Function number(String functionName, final NumberFunction2 body) {
+        Adapter adapter = new Adapter() {
+            @Override
+            public Value invoke(Token function, Stack<Token> stack) throws ParserException {
+                BigDecimal b = stack.pop().asNumber();
+                BigDecimal a = stack.pop().asNumber();
+                return new Value(function.getText()).setValue(body.apply(a, b));
+            }
+        };
+        return new Function(functionName, adapter, "invoke", 2, 2, ValueType.NUMBER, ValueType.NUMBER).setResultType(ValueType.NUMBER);
+    }
+
+    /**
+     * A function of one STRING, e.g. parser.addFunction(Function.string("INITIAL", s -> s.substring(0, 1)))
+     */
+    public static Function string(String functionName, final StringFunction1 body) {
+        Adapter adapter = new Adapter() {
+            @Override
+            public Value invoke(Token function, Stack<Token> stack) throws ParserException {
+                String a = stack.pop().asString();
+                return new Value(function.getText()).setValue(body.apply(a));
+            }
+        };
+        return new Function(functionName, adapter, "invoke", 1, 1, ValueType.STRING).setResultType(ValueType.STRING);
+    }
+
+    /**
+     * A function of two STRINGs.
+     */
+    public static Function string(String functionName, final StringFunction2 body) {
+        Adapter adapter = new Adapter() {
+            @Override
+            public Value invoke(Token function, Stack<Token> stack) throws ParserException {
+                String b = stack.pop().asString();
+                String a = stack.pop().asString();
+                return new Value(function.getText()).setValue(body.apply(a, b));
+            }
+        };
+        return new Function(functionName, adapter, "invoke", 2, 2, ValueType.STRING, ValueType.STRING).setResultType(ValueType.STRING);
+    }
+
+    /**
+     * A function of minArgs to maxArgs values of any type, in the order they were passed.
+     */
+    public static Function varargs(String functionName, int minArgs, int maxArgs, final VarargsFunction body) {
+        Adapter adapter = new Adapter() {
+            @Override
+            public Value invoke(Token function, Stack<Token> stack) throws ParserException {
+                Value[] arguments = new Value[function.getArgc()];
+                for (int i = arguments.length - 1; i >= 0; i--) {
+                    arguments[i] = stack.pop().getValue();
+                }
+                Value value = body.apply(arguments);
+                return value != null ? value : new Value(function.getText());
+            }
+        };
+        return new Function(functionName, adapter, "invoke", minArgs, maxArgs);
+    }
+
     /*---------------------------------------------------------------------------------*/
 
     public String getName() {
         return functionName;
     }
 
+    /*
+     * A deterministic function returns the same value for the same arguments and has no side
+     * effects. Calls to it with literal arguments are evaluated once when an expression is compiled,
+     * and a call made with the same arguments as the last time reuses the last result.
+     * The result may depend on the parser's precision and time zone, as those changes are tracked.
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    public Function setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic;
+        return this;
+    }
+
+    /*
+     * A pure function has no side effects: it changes no variables, globals, or settings, although
+     * unlike a deterministic function its result may vary, e.g. NOW, RANDOM, or GETGLOBAL. Calls to
+     * it do not discard the subexpression results shared between the statements of a script.
+     * Deterministic functions are always pure.
+     */
+    public boolean isPure() {
+        return pure || deterministic;
+    }
+
+    public Function setPure(boolean pure) {
+        this.pure = pure;
+        return this;
+    }
+
+    /*
+     * The type of the values the function returns, or null if it varies or is not declared. The
+     * compiler uses it to choose operations specialized for the operand types, such as adding two
+     * numbers, which still check the types they receive and defer to the general operation if needed.
+     */
+    public ValueType getResultType() {
+        return resultType;
+    }
+
+    public Function setResultType(ValueType resultType) {
+        this.resultType = resultType;
+        return this;
+    }
+
     /*---------------------------------------------------------------------------------*/
 
     public Value execute(Token function, Stack<Token> stack) throws ParserException {
+        validateParameters(function, stack);
+        return invoke(function, stack);
+    }
+
+    /*
+     * Invoke the function without validating its arguments, which the caller has already done.
+     */
+    Value invoke(Token function, Stack<Token> stack) throws ParserException {
         Value value;
 
         try {
-            validateParameters(function, stack);
-            value = (Value) javaMethod.invoke(javaInstance, function, stack);
-        } catch (ParserException pex) {
-            throw pex;
-        } catch (Exception ex) {
-            if (ex.getCause() instanceof ParserException) {
-                throw (ParserException)ex.getCause();
-            } else {
-                String msg = ex.getMessage();
-                if (msg == null) {
-                    msg = ex.getCause().getMessage();
-                    if (msg == null) {
-                        msg = ex.getCause().toString();
-                    }
-                }
-                throw new ParserException(msg, ex, function.getRow(), function.getColumn());
+            value = (Value) invoker.invokeExact(function, stack);
+        } catch (ParserException ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            String msg = ex.getMessage();
+            if (msg == null) {
+                msg = ex.toString();
             }
+            throw new ParserException(msg, ex, function.getRow(), function.getColumn());
         }
 
         return value;
@@ -68,6 +276,41 @@ public class Function {
 
     /*----------------------------------------------------------------------------*/
 
+    /*
+     * Validate a call when it is compiled, given the types its arguments are certain to have (null
+     * where the type is only known at run time). Returns the indexes of the arguments whose types
+     * must still be checked at run time, or null if the call would fail validateParameters(), which
+     * must then run in full so the error is reported when, and if, the call is evaluated.
+     */
+    int[] argumentsToCheck(ValueType[] types) {
+        if (types.length < minArgs || types.length > maxArgs) {
+            return null;
+        }
+
+        int count = 0;
+        int[] indexes = new int[types.length];
+        if (parameters != null) {
+            for (int i = 0; i < types.length && i < parameters.length; i++) {
+                if (parameters[i] == ValueType.UNDEFINED || parameters[i] == types[i]) {
+                    continue;
+                } else if (types[i] != null) {
+                    return null;
+                }
+                indexes[count++] = i;
+            }
+        }
+        return Arrays.copyOf(indexes, count);
+    }
+
+    /*
+     * Check the types of the given arguments of a call whose number of arguments is known to be valid.
+     */
+    void validateArguments(Token function, Stack<Token> stack, int[] indexes) throws ParserException {
+        for (int i : indexes) {
+            validateArgument(function, stack, i);
+        }
+    }
+
     private void validateParameters(Token function, Stack<Token> stack) throws ParserException {
         if (stack != null && function != null) {
             // Make sure the number of arguments parsed is within the accepted range
@@ -89,25 +332,29 @@ public class Function {
                         break;
                     }
 
-                    // Get next parameter to test
-                    Token token = stack.get(stack.size() - function.getArgc() + i);
-
-                    // Any token whose value is null will cause the testing of that
-                    // parameter to be skipped. This supports passing a NULL value
-                    // into a function.
-                    if (token.getValue().asObject() == null) {
-                        continue;
-                    }
-
-                    // Make sure parameter type agrees with what is expected
-                    if (parameters[i] != token.getValue().getType() && parameters[i] != ValueType.UNDEFINED) {
-                        String msg = ParserException.formatMessage("error.function_type_mismatch",
-                                function.getText(), String.valueOf(i + 1), parameters[i].name(), token.getValue().getType().name());
-                        throw new ParserException(msg, function.getRow(), function.getColumn() + function.getText().length());
-                    }
+                    validateArgument(function, stack, i);
                 }
             }
         }
     }
 
+    private void validateArgument(Token function, Stack<Token> stack, int i) throws ParserException {
+        // Get next parameter to test
+        Token token = stack.get(stack.size() - function.getArgc() + i);
+
+        // Any token whose value is null will cause the testing of that
+        // parameter to be skipped. This supports passing a NULL value
+        // into a function.
+        if (token.getValue().asObject() == null) {
+            return;
+        }
+
+        // Make sure parameter type agrees with what is expected
+        if (parameters[i] != token.getValue().getType() && parameters[i] != ValueType.UNDEFINED) {
+            String msg = ParserException.formatMessage("error.function_type_mismatch",
+                    function.getText(), String.valueOf(i + 1), parameters[i].name(), token.getValue().getType().name());
+            throw new ParserException(msg, function.getRow(), function.getColumn() + function.getText().length());
+        }
+    }
+
 }
@@ -55,73 +55,77 @@ public class FunctionToolbox {
 
         toolbox.parser = parser;
 
-        parser.addFunction(new Function("ABS", toolbox, "_ABS", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("ARCCOS", toolbox, "_ARCCOS", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("ARCSIN", toolbox, "_ARCSIN", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("ARCTAN", toolbox, "_ARCTAN", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("ARRAYLEN", toolbox, "_ARRAYLEN", 1, 1));
-        parser.addFunction(new Function("AVERAGE", toolbox, "_AVERAGE", 1, Integer.MAX_VALUE, ValueType.NUMBER));
-        parser.addFunction(new Function("CEILING", toolbox, "_CEILING", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("CONTAINS", toolbox, "_CONTAINS", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("CONTAINSALL", toolbox, "_CONTAINSALL", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("CONTAINSANY", toolbox, "_CONTAINSANY", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("COS", toolbox, "_COS", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("DATEADD", toolbox, "_DATEADD", 2, 3, ValueType.DATE, ValueType.NUMBER, ValueType.STRING));
-        parser.addFunction(new Function("DATEBETWEEN", toolbox, "_DATEBETWEEN", 3, 3, ValueType.DATE, ValueType.DATE, ValueType.DATE));
-        parser.addFunction(new Function("DATEBOD", toolbox, "_DATEBOD", 1, 1, ValueType.DATE));
-        parser.addFunction(new Function("DATEEOD", toolbox, "_DATEEOD", 1, 1, ValueType.DATE));
-        parser.addFunction(new Function("DATEFORMAT", toolbox, "_DATEFORMAT", 2, 8, ValueType.STRING, ValueType.UNDEFINED, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER));
-        parser.addFunction(new Function("DATEWITHIN", toolbox, "_DATEWITHIN", 3, 3, ValueType.DATE, ValueType.DATE, ValueType.NUMBER));
-        parser.addFunction(new Function("DIGITSONLY", toolbox, "_DIGITSONLY", 1, 1, ValueType.STRING));
-        parser.addFunction(new Function("ENDSWITH", toolbox, "_ENDSWITH", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("EXP", toolbox, "_EXP", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("FACTORIAL", toolbox, "_FACTORIAL", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("FIND", toolbox, "_FIND", 2, 3, ValueType.STRING, ValueType.STRING, ValueType.NUMBER));
-        parser.addFunction(new Function("FLOOR", toolbox, "_FLOOR", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("FORMAT", toolbox, "_FORMAT", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("FORMATBYLEN", toolbox, "_FORMATBYLEN", 3, 3, ValueType.STRING, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("GUID", toolbox, "_GUID", 0, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("HEX", toolbox, "_HEX", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("ISANYOF", toolbox, "_ISANYOF", 1, Integer.MAX_VALUE, ValueType.STRING, ValueType.UNDEFINED));
-        parser.addFunction(new Function("ISBLANK", toolbox, "_ISBLANK", 1, 1));
-        parser.addFunction(new Function("ISBOOLEAN", toolbox, "_ISBOOLEAN", 1, 1));
-        parser.addFunction(new Function("ISDATE", toolbox, "_ISDATE", 1, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("ISNONEOF", toolbox, "_ISNONEOF", 1, Integer.MAX_VALUE, ValueType.STRING, ValueType.UNDEFINED));
-        parser.addFunction(new Function("ISNULL", toolbox, "_ISNULL", 1, 1));
-        parser.addFunction(new Function("ISNUMBER", toolbox, "_ISNUMBER", 1, 1));
-        parser.addFunction(new Function("LEFT", toolbox, "_LEFT", 2, 2, ValueType.STRING, ValueType.NUMBER));
-        parser.addFunction(new Function("LEFTOF", toolbox, "_LEFTOF", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("LEN", toolbox, "_LEN", 1, 1, ValueType.STRING));
-        parser.addFunction(new Function("LOG", toolbox, "_LOG", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("LOG10", toolbox, "_LOG10", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("LOWER", toolbox, "_LOWER", 1, 1, ValueType.STRING));
-        parser.addFunction(new Function("MAKEBOOLEAN", toolbox, "_MAKEBOOLEAN", 1, 1));
-        parser.addFunction(new Function("MAKEDATE", toolbox, "_MAKEDATE", 1, 7, ValueType.UNDEFINED, ValueType.UNDEFINED, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER));
-        parser.addFunction(new Function("MATCH", toolbox, "_MATCH", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("MAX", toolbox, "_MAX", 2, 2, ValueType.NUMBER, ValueType.NUMBER));
-        parser.addFunction(new Function("MID", toolbox, "_MID", 2, 3, ValueType.STRING, ValueType.NUMBER, ValueType.NUMBER));
-        parser.addFunction(new Function("MIN", toolbox, "_MIN", 2, 2, ValueType.NUMBER, ValueType.NUMBER));
-        parser.addFunction(new Function("NAMECASE", toolbox, "_NAMECASE", 1, 1, ValueType.STRING));
-        parser.addFunction(new Function("RANDOM", toolbox, "_RANDOM", 0, 2, ValueType.NUMBER, ValueType.NUMBER));
-        parser.addFunction(new Function("REPLACE", toolbox, "_REPLACE", 3, 3, ValueType.STRING, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("REPLACEALL", toolbox, "_REPLACEALL", 3, 3, ValueType.STRING, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("REPLACEFIRST", toolbox, "_REPLACEFIRST", 3, 3, ValueType.STRING, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("RIGHT", toolbox, "_RIGHT", 2, 2, ValueType.STRING, ValueType.NUMBER));
-        parser.addFunction(new Function("RIGHTOF", toolbox, "_RIGHTOF", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("ROUND", toolbox, "_ROUND", 2, 2, ValueType.NUMBER, ValueType.NUMBER));
-        parser.addFunction(new Function("SIN", toolbox, "_SIN", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("SPLIT", toolbox, "_SPLIT", 1, 3, ValueType.STRING, ValueType.STRING, ValueType.NUMBER));
-        parser.addFunction(new Function("SQR", toolbox, "_SQR", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("SQRT", toolbox, "_SQRT", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("STARTSWITH", toolbox, "_STARTSWITH", 2, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("STR", toolbox, "_STR", 1, 3, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER));
-        parser.addFunction(new Function("STRING", toolbox, "_STRING", 2, 2, ValueType.STRING, ValueType.NUMBER));
-        parser.addFunction(new Function("TAN", toolbox, "_TAN", 1, 1, ValueType.NUMBER));
-        parser.addFunction(new Function("TRIM", toolbox, "_TRIM", 1, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("TRIMLEFT", toolbox, "_TRIMLEFT", 1, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("TRIMRIGHT", toolbox, "_TRIMRIGHT", 1, 2, ValueType.STRING, ValueType.STRING));
-        parser.addFunction(new Function("UPPER", toolbox, "_UPPER", 1, 1, ValueType.STRING));
-        parser.addFunction(new Function("VAL", toolbox, "_VAL", 1, 1, ValueType.STRING));
+        List<Function> functions = new ArrayList<>();
+
+        functions.add(new Function("ABS", toolbox, "_ABS", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("ARCCOS", toolbox, "_ARCCOS", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("ARCSIN", toolbox, "_ARCSIN", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("ARCTAN", toolbox, "_ARCTAN", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("ARRAYLEN", toolbox, "_ARRAYLEN", 1, 1).setPure(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("AVERAGE", toolbox, "_AVERAGE", 1, Integer.MAX_VALUE, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("CEILING", toolbox, "_CEILING", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("CONTAINS", toolbox, "_CONTAINS", 2, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("CONTAINSALL", toolbox, "_CONTAINSALL", 2, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("CONTAINSANY", toolbox, "_CONTAINSANY", 2, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("COS", toolbox, "_COS", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("DATEADD", toolbox, "_DATEADD", 2, 3, ValueType.DATE, ValueType.NUMBER, ValueType.STRING).setDeterministic(true).setResultType(ValueType.DATE));
+        functions.add(new Function("DATEBETWEEN", toolbox, "_DATEBETWEEN", 3, 3, ValueType.DATE, ValueType.DATE, ValueType.DATE).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("DATEBOD", toolbox, "_DATEBOD", 1, 1, ValueType.DATE).setDeterministic(true).setResultType(ValueType.DATE));
+        functions.add(new Function("DATEEOD", toolbox, "_DATEEOD", 1, 1, ValueType.DATE).setDeterministic(true).setResultType(ValueType.DATE));
+        functions.add(new Function("DATEFORMAT", toolbox, "_DATEFORMAT", 2, 8, ValueType.STRING, ValueType.UNDEFINED, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER).setDeterministic(true));
+        functions.add(new Function("DATEWITHIN", toolbox, "_DATEWITHIN", 3, 3, ValueType.DATE, ValueType.DATE, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("DIGITSONLY", toolbox, "_DIGITSONLY", 1, 1, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("ENDSWITH", toolbox, "_ENDSWITH", 2, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("EXP", toolbox, "_EXP", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("FACTORIAL", toolbox, "_FACTORIAL", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("FIND", toolbox, "_FIND", 2, 3, ValueType.STRING, ValueType.STRING, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("FLOOR", toolbox, "_FLOOR", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("FORMAT", toolbox, "_FORMAT", 2, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("FORMATBYLEN", toolbox, "_FORMATBYLEN", 3, 3, ValueType.STRING, ValueType.STRING, ValueType.STRING).setResultType(ValueType.STRING));
+        functions.add(new Function("GUID", toolbox, "_GUID", 0, 1, ValueType.NUMBER).setPure(true).setResultType(ValueType.STRING));
+        functions.add(new Function("HEX", toolbox, "_HEX", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("ISANYOF", toolbox, "_ISANYOF", 1, Integer.MAX_VALUE, ValueType.STRING, ValueType.UNDEFINED).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("ISBLANK", toolbox, "_ISBLANK", 1, 1).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("ISBOOLEAN", toolbox, "_ISBOOLEAN", 1, 1).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("ISDATE", toolbox, "_ISDATE", 1, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("ISNONEOF", toolbox, "_ISNONEOF", 1, Integer.MAX_VALUE, ValueType.STRING, ValueType.UNDEFINED).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("ISNULL", toolbox, "_ISNULL", 1, 1).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("ISNUMBER", toolbox, "_ISNUMBER", 1, 1).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("LEFT", toolbox, "_LEFT", 2, 2, ValueType.STRING, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("LEFTOF", toolbox, "_LEFTOF", 2, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("LEN", toolbox, "_LEN", 1, 1, ValueType.STRING).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("LOG", toolbox, "_LOG", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("LOG10", toolbox, "_LOG10", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("LOWER", toolbox, "_LOWER", 1, 1, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("MAKEBOOLEAN", toolbox, "_MAKEBOOLEAN", 1, 1).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("MAKEDATE", toolbox, "_MAKEDATE", 1, 7, ValueType.UNDEFINED, ValueType.UNDEFINED, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.DATE));
+        functions.add(new Function("MATCH", toolbox, "_MATCH", 2, 2, ValueType.STRING, ValueType.STRING).setPure(true));
+        functions.add(new Function("MAX", toolbox, "_MAX", 2, 2, ValueType.NUMBER, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("MID", toolbox, "_MID", 2, 3, ValueType.STRING, ValueType.NUMBER, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("MIN", toolbox, "_MIN", 2, 2, ValueType.NUMBER, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("NAMECASE", toolbox, "_NAMECASE", 1, 1, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("RANDOM", toolbox, "_RANDOM", 0, 2, ValueType.NUMBER, ValueType.NUMBER).setPure(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("REPLACE", toolbox, "_REPLACE", 3, 3, ValueType.STRING, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("REPLACEALL", toolbox, "_REPLACEALL", 3, 3, ValueType.STRING, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("REPLACEFIRST", toolbox, "_REPLACEFIRST", 3, 3, ValueType.STRING, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("RIGHT", toolbox, "_RIGHT", 2, 2, ValueType.STRING, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("RIGHTOF", toolbox, "_RIGHTOF", 2, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("ROUND", toolbox, "_ROUND", 2, 2, ValueType.NUMBER, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("SIN", toolbox, "_SIN", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("SPLIT", toolbox, "_SPLIT", 1, 3, ValueType.STRING, ValueType.STRING, ValueType.NUMBER).setPure(true));
+        functions.add(new Function("SQR", toolbox, "_SQR", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("SQRT", toolbox, "_SQRT", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("STARTSWITH", toolbox, "_STARTSWITH", 2, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.BOOLEAN));
+        functions.add(new Function("STR", toolbox, "_STR", 1, 3, ValueType.NUMBER, ValueType.NUMBER, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("STRING", toolbox, "_STRING", 2, 2, ValueType.STRING, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("TAN", toolbox, "_TAN", 1, 1, ValueType.NUMBER).setDeterministic(true).setResultType(ValueType.NUMBER));
+        functions.add(new Function("TRIM", toolbox, "_TRIM", 1, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("TRIMLEFT", toolbox, "_TRIMLEFT", 1, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("TRIMRIGHT", toolbox, "_TRIMRIGHT", 1, 2, ValueType.STRING, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("UPPER", toolbox, "_UPPER", 1, 1, ValueType.STRING).setDeterministic(true).setResultType(ValueType.STRING));
+        functions.add(new Function("VAL", toolbox, "_VAL", 1, 1, ValueType.STRING).setDeterministic(true).setResultType(ValueType.NUMBER));
+
+        parser.addFunctions(functions);
 
         return toolbox;
     }
@@ -222,6 +226,9 @@ public class FunctionToolbox {
     public String[] setDatePatterns(String[] datePatterns) {
         String[] orgDatePatterns = this.datePatterns;
         this.datePatterns = datePatterns;
+        if (parser != null) {
+            parser.configurationChanged();
+        }
         return orgDatePatterns;
     }
 
@@ -302,11 +309,12 @@ public class FunctionToolbox {
         Token token = stack.pop();
         Value theValue = token.getValue();
         if (theValue.asObject() != null) {
-            if (theValue.getArray() == null) {
+            NumericArray numbers = theValue.peekNumbers();
+            if (theValue.peekArray() == null && numbers == null) {
                 String msg = ParserException.formatMessage("error.expected_array", token.getValue().getType());
                 throw new ParserException(msg, token.getRow(), token.getColumn());
             }
-            value.setValue(BigDecimal.valueOf(theValue.getArray().size()));
+            value.setValue(BigDecimal.valueOf(numbers != null ? numbers.getRows() : theValue.peekArray().size()));
         } else {
             value.setValue((BigDecimal) null);
         }
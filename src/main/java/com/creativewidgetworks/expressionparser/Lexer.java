@@ -0,0 +1,529 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass tokenizer that dispatches on the current character instead of running the combined
+ * TokenType pattern. It produces exactly the tokens, texts, and positions the pattern does, quirks
+ * included, so the two are interchangeable:
+ *
+ *   - At each position the token types are tried in declaration order and the first that matches
+ *     wins, e.g. "notice" is the operator "not" followed by the identifier "ice".
+ *   - Operators, constants, and functions are tried in the reverse sorted order of their names,
+ *     the order of the alternations in the pattern. Constant and function names are looked up in
+ *     a trie of their case folded characters, so the cost does not grow with their number.
+ *   - A character nothing matches produces an empty NOMATCH token and is skipped, and the input
+ *     always ends with a NOMATCH token, which Parser.tokenize() removes.
+ *
+ * The pattern treats constant and function names as regular expressions. Parser only uses a Lexer
+ * when every name is a plain literal (see create()).
+ */
+final class Lexer {
+    private static final String REGEX_SYNTAX = "\\^$.|?*+()[]{}";
+
+    private final boolean caseSensitive;
+    private final String[][] operators;
+    private final Map<String, Operator> operatorsByName;
+    private final Names constants;
+    private final Names functions;
+
+    private Lexer(boolean caseSensitive, String[] operators, String[] constants, String[] functions) {
+        this.caseSensitive = caseSensitive;
+        this.operators = index(operators);
+        this.operatorsByName = new HashMap<>();
+        for (String name : operators) {
+            operatorsByName.put(name, Operator.forText(name));
+        }
+        this.constants = new Names(caseSensitive, constants);
+        this.functions = new Names(caseSensitive, functions);
+    }
+
+    /*
+     * The names that can match at an ASCII character, indexed by the character, in their original
+     * order; the last entry holds all of the names for the other characters.
+     */
+    private String[][] index(String[] names) {
+        String[][] index = new String[129][];
+        for (int ch = 0; ch < 128; ch++) {
+            String first = String.valueOf((char) ch);
+            List<String> candidates = new ArrayList<>();
+            for (String name : names) {
+                if (first.regionMatches(!caseSensitive, 0, name, 0, 1)) {
+                    candidates.add(name);
+                }
+            }
+            index[ch] = candidates.toArray(new String[0]);
+        }
+        index[128] = names;
+        return index;
+    }
+
+    /**
+     * A lexer for the parser's current constants, functions, and case sensitivity, or null if a
+     * name would have to be interpreted as a regular expression.
+     */
+    static Lexer create(Parser parser) {
+        String[] constants = parser.getConstantNames().toArray(new String[0]);
+        String[] functions = parser.getFunctionNames().toArray(new String[0]);
+        if (!isLiteral(constants) || !isLiteral(functions)) {
+            return null;
+        }
+
+        // Operator regexes only escape their characters
+        String[] operators = Operator.getOperatorRegex().split("\\|");
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = operators[i].replace("\\", "");
+        }
+
+        return new Lexer(parser.getCaseSensitive(), operators, constants, functions);
+    }
+
+    private static boolean isLiteral(String[] names) {
+        for (String name : names) {
+            if (name.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (REGEX_SYNTAX.indexOf(name.charAt(i)) >= 0 || Character.isWhitespace(name.charAt(i))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /**
+     * Tokenize the input, including the trailing NOMATCH token. Only the texts of strings, fields,
+     * and properties with escapes are created here; the others are slices of the input until needed.
+     */
+    List<Token> tokenize(String input, boolean wantWhitespace) {
+        List<Token> tokens = new ArrayList<>();
+        int length = input.length();
+        int offset = 0;
+        int row = 1;
+        char[] chars = null;
+
+        int pos = 0;
+        while (pos <= length) {
+            TokenType type = TokenType.NOMATCH;
+            String text = null;
+            Operator operator = null;
+            int start = pos;
+            int end = pos;
+
+            if (pos < length) {
+                char ch = input.charAt(pos);
+                String name;
+                if ((end = comment(input, pos)) > pos) {
+                    type = TokenType.COMMENT;
+                } else if ((end = number(input, pos)) > pos) {
+                    type = TokenType.NUMBER;
+                } else if ((end = string(input, pos)) > pos) {
+                    type = TokenType.STRING;
+                    text = unescape(input, pos + 1, end - 1);
+                } else if ((name = literal(input, pos, operators)) != null) {
+                    type = TokenType.OPERATOR;
+                    end = pos + name.length();
+                    if (isAscii(input, pos, end)) {
+                        // Otherwise looked up by the token's text, which may not find it
+                        operator = operatorsByName.get(name);
+                    }
+                } else if ((end = constants.match(input, pos)) > pos) {
+                    type = TokenType.CONSTANT;
+                } else if ((end = functions.match(input, pos)) > pos) {
+                    type = TokenType.FUNCTION;
+                } else if ((end = identifier(input, pos)) > pos) {
+                    type = TokenType.IDENTIFIER;
+                } else if ((end = field(input, pos)) > pos) {
+                    type = TokenType.FIELD;
+                    start = pos + 1;
+                    text = isAscii(input, pos, end) ? unescape(input, start, end) : TokenType.FIELD.resolve(input.substring(pos, end));
+                } else if ((end = property(input, pos)) > pos) {
+                    type = TokenType.PROPERTY;
+                    start = pos + 2;
+                    text = unescape(input, start, end - 1);
+                } else if (ch == '\n') {
+                    type = TokenType.NEWLINE;
+                    end = pos + 1;
+                } else if (ch == ';') {
+                    type = TokenType.EOS;
+                    end = pos + 1;
+                } else if (ch == ' ' || ch == '\t') {
+                    type = TokenType.WHITESPACE;
+                    end = pos + 1;
+                    while (end < length && (input.charAt(end) == ' ' || input.charAt(end) == '\t')) {
+                        end++;
+                    }
+                } else {
+                    end = pos;
+                }
+            }
+
+            if (wantWhitespace || type != TokenType.WHITESPACE) {
+                int column = pos + 1 - offset;
+                Token token;
+                if (type == TokenType.NUMBER) {
+                    if (chars == null) {
+                        chars = input.toCharArray();
+                    }
+                    token = Token.slice(type, input, pos, end, number(chars, pos, end), row, column);
+                } else if (type == TokenType.STRING) {
+                    text = text != null ? text : input.substring(pos + 1, end - 1);
+                    token = Token.adopt(type, text, new Value("string", text), row, column);
+                } else if (text != null) {
+                    token = Token.adopt(type, text, new Value(), row, column);
+                } else {
+                    int textEnd = type == TokenType.PROPERTY ? end - 1 : end;
+                    token = Token.slice(type, input, start, textEnd, new Value(), row, column);
+                }
+                tokens.add(token.setOperator(operator));
+            }
+
+            if (type == TokenType.NEWLINE) {
+                offset = pos + 1;
+                row++;
+            }
+
+            // Like Matcher.find(), skip a character after an empty match
+            pos = end > pos ? end : pos + 1;
+        }
+
+        return tokens;
+    }
+
+    /*
+     * The value of a number literal, parsed without creating its text. As the text was parsed and
+     * the value copied before, a number with a negative scale such as 1e5 is given a scale of 0.
+     */
+    private static Value number(char[] chars, int start, int end) {
+        BigDecimal number = new BigDecimal(chars, start, end - start);
+        Value value = new Value("number", number);
+        return number.scale() < 0 ? new Value(value) : value;
+    }
+
+    /*
+     * The unescaped text of the slice, or null if it has no escapes and the slice can be used.
+     */
+    private static String unescape(String input, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (input.charAt(i) == '\\') {
+                return TokenType.unescapeString(input.substring(start, end));
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAscii(String input, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (input.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split a script into its statements at the delimiters that are not within a string or comment,
+     * in a single pass, leaving out blank statements. Quotes and comment openers that do not form a
+     * complete token, e.g. an unterminated string, are ordinary characters, as they are to tokenize().
+     */
+    static List<String> split(String source, String delimiter) {
+        List<String> statements = new ArrayList<>();
+        if (source.indexOf(delimiter) < 0) {
+            add(statements, source);
+            return statements;
+        }
+
+        int start = 0;
+        int pos = 0;
+        boolean commentsClosed = true;
+        while (pos < source.length()) {
+            int end;
+            if (source.startsWith(delimiter, pos)) {
+                add(statements, source.substring(start, pos));
+                start = pos = pos + delimiter.length();
+            } else if ((end = string(source, pos)) > pos) {
+                pos = end;
+            } else if (commentsClosed && source.startsWith("/*", pos)) {
+                // Once a comment is unterminated so are the rest, so stop looking for their ends
+                end = comment(source, pos);
+                commentsClosed = end > pos;
+                pos = commentsClosed ? end : pos + 1;
+            } else {
+                pos++;
+            }
+        }
+        add(statements, source.substring(start));
+        return statements;
+    }
+
+    private static void add(List<String> statements, String statement) {
+        if (statement.trim().length() > 0) {
+            statements.add(statement);
+        }
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    // Each returns the end of the token of its type starting at pos, or pos if there is none
+
+    /*
+     * /* ... * / ending at the first * /
+     */
+    private static int comment(String input, int pos) {
+        if (input.startsWith("/*", pos)) {
+            int close = input.indexOf("*/", pos + 2);
+            if (close >= 0) {
+                return close + 2;
+            }
+        }
+        return pos;
+    }
+
+    /*
+     * (?:\b[0-9]+(?:\.[0-9]*)?|\.[0-9]+\b)(?:[eE][-+]?[0-9]+\b)?
+     */
+    private static int number(String input, int pos) {
+        int end;
+        if (isDigit(input, pos)) {
+            if (pos > 0 && isWord(input.codePointBefore(pos))) {
+                return pos;
+            }
+            end = digits(input, pos);
+            if (end < input.length() && input.charAt(end) == '.') {
+                end = digits(input, end + 1);
+            }
+        } else if (input.charAt(pos) == '.' && isDigit(input, pos + 1)) {
+            end = digits(input, pos + 1);
+            if (!isBoundary(input, end)) {
+                return pos;
+            }
+        } else {
+            return pos;
+        }
+
+        if (end < input.length() && (input.charAt(end) == 'e' || input.charAt(end) == 'E')) {
+            int exponent = end + 1;
+            if (exponent < input.length() && (input.charAt(exponent) == '-' || input.charAt(exponent) == '+')) {
+                exponent++;
+            }
+            if (isDigit(input, exponent)) {
+                exponent = digits(input, exponent);
+                if (isBoundary(input, exponent)) {
+                    end = exponent;
+                }
+            }
+        }
+        return end;
+    }
+
+    /*
+     * "((?:[^"\\]|\\.)*)"|'((?:[^'\\]|\\.)*)'
+     */
+    private static int string(String input, int pos) {
+        char quote = input.charAt(pos);
+        if (quote != '"' && quote != '\'') {
+            return pos;
+        }
+        for (int i = pos + 1; i < input.length(); i++) {
+            char ch = input.charAt(i);
+            if (ch == quote) {
+                return i + 1;
+            } else if (ch == '\\') {
+                if (i + 1 >= input.length() || isLineTerminator(input.charAt(i + 1))) {
+                    return pos;
+                }
+                i++;
+            }
+        }
+        return pos;
+    }
+
+    /*
+     * The first of the names that matches, in the order given, or null.
+     */
+    private String literal(String input, int pos, String[][] index) {
+        char ch = input.charAt(pos);
+        for (String name : index[ch < 128 ? ch : 128]) {
+            if (input.regionMatches(!caseSensitive, pos, name, 0, name.length())) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * [_A-Za-z][_A-Za-z0-9]*
+     */
+    private int identifier(String input, int pos) {
+        if (!isLetter(input.charAt(pos)) && input.charAt(pos) != '_') {
+            return pos;
+        }
+        int end = pos + 1;
+        while (end < input.length() && (isLetter(input.charAt(end)) || input.charAt(end) == '_' || isDigit(input, end))) {
+            end++;
+        }
+        return end;
+    }
+
+    /*
+     * @([@]{0,2}[\.\->_/:A-Za-z0-9]+)
+     */
+    private int field(String input, int pos) {
+        if (input.charAt(pos) != '@') {
+            return pos;
+        }
+        int start = pos + 1;
+        for (int ats = 0; ats < 2 && start < input.length() && input.charAt(start) == '@'; ats++) {
+            start++;
+        }
+        int end = start;
+        while (end < input.length() && isFieldChar(input.charAt(end))) {
+            end++;
+        }
+        return end > start ? end : pos;
+    }
+
+    /*
+     * \$\{(.*)\}, which extends to the last } on the line
+     */
+    private static int property(String input, int pos) {
+        if (!input.startsWith("${", pos)) {
+            return pos;
+        }
+        int end = pos;
+        for (int i = pos + 2; i < input.length() && !isLineTerminator(input.charAt(i)); i++) {
+            if (input.charAt(i) == '}') {
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /*
+     * Constant or function names keyed by their characters, case folded like String.regionMatches()
+     * when case insensitive. Every name that matches at a position is a prefix of the input, so
+     * walking the input down the trie finds them all; the first in the reverse sorted order tried by
+     * the pattern is the greatest, which is the longest unless names differ only in case.
+     */
+    private static final class Names {
+        private final boolean caseSensitive;
+        private final Map<Character, Names> children = new HashMap<>();
+        private String name;
+
+        Names(boolean caseSensitive, String[] names) {
+            this(caseSensitive);
+            for (String name : names) {
+                Names node = this;
+                for (int i = 0; i < name.length(); i++) {
+                    Character key = node.fold(name.charAt(i));
+                    Names child = node.children.get(key);
+                    if (child == null) {
+                        child = new Names(caseSensitive);
+                        node.children.put(key, child);
+                    }
+                    node = child;
+                }
+                if (node.name == null || name.compareTo(node.name) > 0) {
+                    node.name = name;
+                }
+            }
+        }
+
+        private Names(boolean caseSensitive) {
+            this.caseSensitive = caseSensitive;
+        }
+
+        private char fold(char ch) {
+            return caseSensitive ? ch : Character.toLowerCase(Character.toUpperCase(ch));
+        }
+
+        /*
+         * The end of the name matching at pos, or pos if there is none.
+         */
+        int match(String input, int pos) {
+            String match = null;
+            Names node = this;
+            for (int i = pos; i < input.length(); i++) {
+                node = node.children.get(fold(input.charAt(i)));
+                if (node == null) {
+                    break;
+                }
+                if (node.name != null && (match == null || node.name.compareTo(match) > 0)) {
+                    match = node.name;
+                }
+            }
+            return match == null ? pos : pos + match.length();
+        }
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    private static int digits(String input, int pos) {
+        while (isDigit(input, pos)) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isDigit(String input, int pos) {
+        return pos < input.length() && input.charAt(pos) >= '0' && input.charAt(pos) <= '9';
+    }
+
+    /*
+     * A-Za-z, which when case insensitive also matches characters whose case variants are ASCII
+     * letters, such as the Kelvin sign
+     */
+    private boolean isLetter(char ch) {
+        if (isAsciiLetter(ch)) {
+            return true;
+        }
+        return !caseSensitive && (isAsciiLetter(Character.toUpperCase(ch)) || isAsciiLetter(Character.toLowerCase(ch)));
+    }
+
+    private static boolean isAsciiLetter(char ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z');
+    }
+
+    private boolean isFieldChar(char ch) {
+        return ".->_/:".indexOf(ch) >= 0 || (ch >= '0' && ch <= '9') || isLetter(ch);
+    }
+
+    /*
+     * \b, where word characters are those of the pattern's UNICODE_CHARACTER_CLASS
+     */
+    private static boolean isBoundary(String input, int pos) {
+        boolean left = pos > 0 && isWord(input.codePointBefore(pos));
+        boolean right = pos < input.length() && isWord(input.codePointAt(pos));
+        return left != right;
+    }
+
+    private static boolean isWord(int ch) {
+        switch (Character.getType(ch)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.CONNECTOR_PUNCTUATION:
+                return true;
+            default:
+                return Character.isAlphabetic(ch) || ch == 0x200C || ch == 0x200D;
+        }
+    }
+
+    /*
+     * Characters . does not match
+     */
+    private static boolean isLineTerminator(char ch) {
+        return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+    }
+
+}
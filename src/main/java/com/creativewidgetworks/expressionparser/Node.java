@@ -0,0 +1,1053 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * A node of the tree NodeCompiler builds from the RPN tokens of one statement. Operators,
+ * functions, and array references are resolved when the tree is built, and each node evaluates
+ * its children directly instead of walking the token list and a shared operand stack.
+ *
+ * The operations themselves are performed by the same Parser methods the RPN walker uses, so
+ * both evaluation paths produce the same values and report the same errors.
+ */
+abstract class Node {
+    final Token token;
+
+    Node(Token token) {
+        this.token = token;
+    }
+
+    /**
+     * The token type of every result this node produces, or null when it depends on the operands.
+     */
+    TokenType getResultType() {
+        return null;
+    }
+
+    /**
+     * The value type of every result this node produces, or null when it is not known in advance.
+     */
+    ValueType getValueType() {
+        return null;
+    }
+
+    /**
+     * True if every result is certain to be of getValueType(), unlike types that are only declared,
+     * such as the result type of a function.
+     */
+    boolean isTypeCertain() {
+        return false;
+    }
+
+    /**
+     * True if the node always evaluates to the same token.
+     */
+    boolean isConstant() {
+        return false;
+    }
+
+    /**
+     * True if the node's operands are constant and evaluating it has no side effects, so that
+     * ConstantFolder can evaluate it once when the tree is built.
+     */
+    boolean isFoldable() {
+        return false;
+    }
+
+    /**
+     * Evaluate the node. Returns null when nothing is produced, i.e. for an assignment.
+     */
+    abstract Token eval(EvaluationContext context) throws ParserException;
+
+    /*----------------------------------------------------------------------------*/
+
+    /*
+     * Number and string literals evaluate to the compiled token itself.
+     */
+    static final class Literal extends Node {
+        Literal(Token token) {
+            super(token);
+            token.getValue().prepareForSharing();
+        }
+
+        @Override
+        TokenType getResultType() {
+            return token.getType();
+        }
+
+        @Override
+        ValueType getValueType() {
+            return token.getValue().getType();
+        }
+
+        @Override
+        boolean isTypeCertain() {
+            return true;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) {
+            return token;
+        }
+    }
+
+    /*
+     * The result of a constant subexpression, computed by ConstantFolder when the tree was built.
+     * If the parser's precision, time zone, constants, or functions have changed since then, the
+     * original subexpression is evaluated instead.
+     */
+    static final class Folded extends Node {
+        private final Parser parser;
+        private final Node original;
+        private final int configurationVersion;
+
+        Folded(Parser parser, Token result, Node original, int configurationVersion) {
+            super(result);
+            result.getValue().prepareForSharing();
+            this.parser = parser;
+            this.original = original;
+            this.configurationVersion = configurationVersion;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return token.getType();
+        }
+
+        @Override
+        ValueType getValueType() {
+            return token.getValue().getType();
+        }
+
+        @Override
+        boolean isTypeCertain() {
+            return true;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            return parser.getConfigurationVersion() == configurationVersion ? token : original.eval(context);
+        }
+    }
+
+    static final class Property extends Node {
+        private final Parser parser;
+
+        Property(Parser parser, Token token) {
+            super(token);
+            this.parser = parser;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return TokenType.PROPERTY;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) {
+            return parser.processProperty(token);
+        }
+    }
+
+    static final class Field extends Node {
+        private final Parser parser;
+        private final int result;
+
+        Field(Parser parser, Token token, int result) {
+            super(token);
+            this.parser = parser;
+            this.result = result;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return TokenType.VALUE;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            Value value = parser.getField(token.getText(), context);
+            return context.getResultToken(result).reuse(TokenType.VALUE, "VALUE", value, token.getRow(), token.getColumn());
+        }
+    }
+
+    static final class Constant extends Node {
+        private final Parser parser;
+
+        Constant(Parser parser, Token token) {
+            super(token);
+            this.parser = parser;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return TokenType.CONSTANT;
+        }
+
+        @Override
+        boolean isFoldable() {
+            return true;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) {
+            return parser.processConstant(token);
+        }
+    }
+
+    /*
+     * A variable, held in the context's frame at the slot NodeCompiler assigned to its name.
+     */
+    static final class Identifier extends Node {
+        private final Parser parser;
+        private final int slot;
+        private final int result;
+        private final String symbol;
+        private final int configurationVersion;
+
+        Identifier(Parser parser, Token token, int slot, int result) {
+            super(token);
+            this.parser = parser;
+            this.slot = slot;
+            this.result = result;
+            this.symbol = parser.foldName(token.getText());
+            this.configurationVersion = parser.getConfigurationVersion();
+        }
+
+        /*
+         * The folded name, unless the parser's case sensitivity may have changed since
+         */
+        String getSymbol() {
+            return parser.getConfigurationVersion() == configurationVersion ? symbol : parser.foldName(token.getText());
+        }
+
+        int getSlot() {
+            return slot;
+        }
+
+        /*
+         * The variable itself, where eval() returns a copy.
+         */
+        Value resolve(EvaluationContext context) {
+            return context.resolveVariable(slot, getSymbol());
+        }
+
+        @Override
+        TokenType getResultType() {
+            return TokenType.IDENTIFIER;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) {
+            Value value = context.resolveVariable(slot, getSymbol());
+            return context.getResultToken(result).reuse(TokenType.IDENTIFIER, token.getText(), value, token.getRow(), token.getColumn());
+        }
+    }
+
+    /*
+     * Function call. Functions take their arguments from a stack, so the evaluated arguments
+     * are pushed onto the context's operand stack before the function is invoked.
+     *
+     * The function is the one registered when the statement was compiled, so its name is not
+     * looked up again unless the parser's configuration has changed since. The number of arguments,
+     * and the types of those certain to be of the type the function expects, were validated then,
+     * so only the arguments whose types depend on the values evaluated are checked on each call.
+     * Calls that would fail are validated in full each time, reporting the error as before.
+     *
+     * A call to a deterministic function that is not folded remembers its last arguments and
+     * result, so that e.g. UPPER(@country) is not called again while the field keeps its value.
+     * Only numbers, strings, and booleans, which cannot be modified, are remembered.
+     */
+    static final class Call extends Node {
+        private final Parser parser;
+        private final Function function;
+        private final Node[] arguments;
+        private final int[] checks;
+        private final int configurationVersion;
+        private final boolean memoized;
+
+        // The last arguments and result; replaced as a whole, so evaluating threads never see a mix
+        private volatile Memo memo;
+
+        private static final class Memo {
+            final Object[] arguments;
+            final Token result;
+
+            Memo(Object[] arguments, Token result) {
+                this.arguments = arguments;
+                this.result = result;
+            }
+        }
+
+        Call(Parser parser, Token token, Function function, Node[] arguments) {
+            super(token);
+            this.parser = parser;
+            this.function = function;
+            this.arguments = arguments;
+            this.configurationVersion = parser.getConfigurationVersion();
+
+            ValueType[] types = new ValueType[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                types[i] = arguments[i].isTypeCertain() ? arguments[i].getValueType() : null;
+            }
+            this.checks = function != null ? function.argumentsToCheck(types) : null;
+            this.memoized = function != null && function.isDeterministic() && arguments.length > 0;
+        }
+
+        /*
+         * The arguments whose types are checked on each call, or null if the call is validated in full.
+         */
+        int[] getChecks() {
+            return checks;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return TokenType.VALUE;
+        }
+
+        @Override
+        ValueType getValueType() {
+            return function == null ? null : function.getResultType();
+        }
+
+        @Override
+        boolean isFoldable() {
+            if (function == null || !function.isDeterministic()) {
+                return false;
+            }
+            for (Node argument : arguments) {
+                if (!argument.isConstant()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            OperandStack stack = context.getOperandStack();
+            int base = stack.size();
+            try {
+                for (Node argument : arguments) {
+                    // Functions may keep or modify their arguments (e.g. SETGLOBAL), so they are given copies
+                    // rather than the literals, remembered results, and scratch tokens of the tree
+                    Token value = argument.eval(context);
+                    stack.push(value != null ? value.copy() : null);
+                }
+                if (function == null || parser.getConfigurationVersion() != configurationVersion) {
+                    return parser.processFunction(token, stack, context);
+                } else if (!memoized) {
+                    return parser.invokeFunction(token, function, checks, stack, context);
+                }
+
+                Object[] values = argumentValues(stack, base);
+                Memo last = memo;
+                if (values != null && last != null && Arrays.equals(values, last.arguments)) {
+                    return last.result;
+                }
+
+                Token result = parser.invokeFunction(token, function, checks, stack, context);
+                if (values != null && isRemembered(result.getValue().getType())) {
+                    result.getValue().prepareForSharing();
+                    memo = new Memo(values, result);
+                }
+                return result;
+            } finally {
+                if (stack.size() > base) {
+                    stack.setSize(base);
+                }
+            }
+        }
+
+        /*
+         * Dates and arrays can be modified, and failures suppressed in a ternary's branch are not results.
+         */
+        private static boolean isRemembered(ValueType type) {
+            return type == ValueType.NUMBER || type == ValueType.STRING || type == ValueType.BOOLEAN;
+        }
+
+        /*
+         * The type and value of each argument, or null if any of them could be modified.
+         */
+        private static Object[] argumentValues(OperandStack stack, int base) {
+            Object[] values = new Object[(stack.size() - base) * 2];
+            for (int i = base; i < stack.size(); i++) {
+                Value value = stack.get(i).getValue();
+                ValueType type = value.getType();
+                if (type != ValueType.NUMBER && type != ValueType.STRING && type != ValueType.BOOLEAN) {
+                    return null;
+                }
+                values[(i - base) * 2] = type;
+                values[(i - base) * 2 + 1] = value.asObject();
+            }
+            return values;
+        }
+    }
+
+    /*
+     * Unary minus and NOT.
+     */
+    static final class Negation extends Node {
+        private final Parser parser;
+        private final Node operand;
+
+        Negation(Parser parser, Token token, Node operand) {
+            super(token);
+            this.parser = parser;
+            this.operand = operand;
+        }
+
+        @Override
+        ValueType getValueType() {
+            ValueType type = operand.getValueType();
+            return ValueType.NUMBER.equals(type) || ValueType.BOOLEAN.equals(type) ? type : null;
+        }
+
+        @Override
+        boolean isTypeCertain() {
+            return operand.isTypeCertain();
+        }
+
+        @Override
+        boolean isFoldable() {
+            return operand.isConstant();
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            return parser.processNegation(token, operand.eval(context));
+        }
+    }
+
+    static final class Percent extends Node {
+        private final Parser parser;
+        private final Node operand;
+
+        Percent(Parser parser, Token token, Node operand) {
+            super(token);
+            this.parser = parser;
+            this.operand = operand;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return TokenType.NUMBER;
+        }
+
+        @Override
+        ValueType getValueType() {
+            return ValueType.NUMBER;
+        }
+
+        @Override
+        boolean isFoldable() {
+            return operand.isConstant();
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            return parser.processPercent(token, operand.eval(context));
+        }
+    }
+
+    /*
+     * Arithmetic and relational operators.
+     *
+     * The node specializes itself on the operand types seen by its first evaluation. NUMBER and
+     * NUMBER, STRING and STRING, or BOOLEAN and BOOLEAN operands are handled by a fast path that
+     * skips the operator and type dispatch of Parser.processOperator(). When operands of another
+     * type arrive, the node permanently reverts to the generic path. The state is volatile so threads
+     * evaluating the same tree see it, and not synchronized: each fast path checks its own guard, so
+     * threads racing to set it only cost a trip through the generic path.
+     */
+    static final class Binary extends Node {
+        private static final int UNINITIALIZED = 0;
+        private static final int NUMBERS = 1;
+        private static final int STRINGS = 2;
+        private static final int BOOLEANS = 3;
+        private static final int GENERIC = 4;
+
+        private final Parser parser;
+        private final Operator op;
+        private final Node lhs;
+        private final Node rhs;
+        private final int result;
+
+        private volatile int state = UNINITIALIZED;
+
+        Binary(Parser parser, Token token, Operator op, Node lhs, Node rhs, int result) {
+            super(token);
+            this.parser = parser;
+            this.op = op;
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.result = result;
+        }
+
+        @Override
+        TokenType getResultType() {
+            if (op.inSet(Operator.MINUS, Operator.MULT, Operator.DIV, Operator.IDIV, Operator.MODULUS, Operator.EXP)) {
+                return TokenType.NUMBER;
+            } else if (op.equals(Operator.PLUS)) {
+                return null;
+            }
+            return TokenType.VALUE;
+        }
+
+        @Override
+        ValueType getValueType() {
+            TokenType type = getResultType();
+            if (TokenType.NUMBER.equals(type)) {
+                return ValueType.NUMBER;
+            } else if (TokenType.VALUE.equals(type)) {
+                return ValueType.BOOLEAN;
+            } else if (op.equals(Operator.PLUS)) {
+                ValueType lhsType = lhs.getValueType();
+                ValueType rhsType = rhs.getValueType();
+                if (ValueType.STRING.equals(lhsType) || ValueType.STRING.equals(rhsType)) {
+                    return ValueType.STRING;
+                } else if (ValueType.NUMBER.equals(lhsType) && ValueType.NUMBER.equals(rhsType)) {
+                    return ValueType.NUMBER;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        boolean isTypeCertain() {
+            // Relational operators produce a BOOLEAN or fail
+            return TokenType.VALUE.equals(getResultType());
+        }
+
+        @Override
+        boolean isFoldable() {
+            return lhs.isConstant() && rhs.isConstant();
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            Token left = lhs.eval(context);
+            Token right = rhs.eval(context);
+            return apply(left, right, context);
+        }
+
+        private Token apply(Token left, Token right, EvaluationContext context) throws ParserException {
+            switch (state) {
+                case NUMBERS:
+                    if (isNumber(left) && isNumber(right)) {
+                        return numbers(left, right, context.getResultToken(result));
+                    }
+                    break;
+                case STRINGS:
+                    if (isType(left, ValueType.STRING) && isType(right, ValueType.STRING)) {
+                        return strings(left, right, context.getResultToken(result));
+                    }
+                    break;
+                case BOOLEANS:
+                    if (isType(left, ValueType.BOOLEAN) && isType(right, ValueType.BOOLEAN)) {
+                        return booleans(left, right, context.getResultToken(result));
+                    }
+                    break;
+                case GENERIC:
+                    return parser.processOperator(op, token, left, right, context);
+                default:
+                    state = specialize(left, right);
+                    return apply(left, right, context);
+            }
+
+            state = GENERIC;
+            return parser.processOperator(op, token, left, right, context);
+        }
+
+        int getState() {
+            return state;
+        }
+
+        /*----------------------------------------------------------------------------*/
+
+        private int specialize(Token left, Token right) {
+            boolean arithmetic = op.inSet(Operator.PLUS, Operator.MINUS, Operator.MULT, Operator.DIV,
+                    Operator.IDIV, Operator.MODULUS, Operator.EXP);
+            boolean comparison = isComparison();
+
+            if (isNumber(left) && isNumber(right) && (arithmetic || comparison)) {
+                return NUMBERS;
+            } else if (isType(left, ValueType.STRING) && isType(right, ValueType.STRING) && (op.equals(Operator.PLUS) || comparison)) {
+                return STRINGS;
+            } else if (isType(left, ValueType.BOOLEAN) && isType(right, ValueType.BOOLEAN) && op.inSet(Operator.EQU, Operator.NEQ)) {
+                return BOOLEANS;
+            }
+            return GENERIC;
+        }
+
+        private boolean isComparison() {
+            return op.inSet(Operator.LT, Operator.LTE, Operator.EQU, Operator.NEQ, Operator.GTE, Operator.GT);
+        }
+
+        private static boolean isType(Token token, ValueType type) {
+            return token.getValue().getType() == type;
+        }
+
+        private static boolean isNumber(Token token) {
+            return token.getValue().getType() == ValueType.NUMBER && token.getValue().asNumber() != null;
+        }
+
+        private Token numbers(Token left, Token right, Token result) throws ParserException {
+            BigDecimal l = left.asNumber();
+            BigDecimal r = right.asNumber();
+            if (isComparison()) {
+                return bool(result, right, compare(l.compareTo(r)));
+            }
+
+            BigDecimal bd;
+            try {
+                switch (op) {
+                    case PLUS:
+                        bd = l.add(r).setScale(parser.getPrecision(), RoundingMode.HALF_UP).stripTrailingZeros();
+                        break;
+                    case MINUS:
+                        bd = l.subtract(r).setScale(parser.getPrecision(), RoundingMode.HALF_UP).stripTrailingZeros();
+                        break;
+                    case MULT:
+                        bd = l.multiply(r).setScale(parser.getPrecision(), RoundingMode.HALF_UP).stripTrailingZeros();
+                        break;
+                    case DIV:
+                        int scale = l.equals(BigDecimal.ZERO) ? r.scale() : parser.getPrecision();
+                        bd = l.divide(r, scale, RoundingMode.HALF_UP).stripTrailingZeros();
+                        break;
+                    case IDIV:
+                        bd = l.divideToIntegralValue(r);
+                        break;
+                    case MODULUS:
+                        bd = l.remainder(r);
+                        break;
+                    default:
+                        MathContext mc = r.compareTo(BigDecimal.ZERO) < 0 ? MathContext.DECIMAL128 : MathContext.UNLIMITED;
+                        bd = l.pow(r.intValue(), mc).setScale(parser.getPrecision(), RoundingMode.HALF_UP).stripTrailingZeros();
+                        break;
+                }
+            } catch (ArithmeticException ex) {
+                throw new ParserException(ex.getMessage(), ex, token.getRow(), token.getColumn());
+            }
+
+            // Same value as parsing bd.toPlainString(), which is how the generic path builds its result
+            return result.reuseNumber(bd.scale() < 0 ? bd.setScale(0) : bd, token.getRow(), token.getColumn());
+        }
+
+        private Token strings(Token left, Token right, Token result) {
+            String l = left.asString();
+            String r = right.asString();
+            if (op.equals(Operator.PLUS)) {
+                String str = (l == null ? "" : l) + (r == null ? "" : r);
+                return result.reuseString(str, token.getRow(), token.getColumn());
+            }
+            return bool(result, right, l != null && r != null && compare(l.compareTo(r)));
+        }
+
+        private Token booleans(Token left, Token right, Token result) {
+            boolean l = left.getValue().asBoolean();
+            boolean r = right.getValue().asBoolean();
+            return bool(result, right, compare(Boolean.compare(l, r)));
+        }
+
+        private boolean compare(int comparison) {
+            switch (op) {
+                case LT:
+                    return comparison < 0;
+                case LTE:
+                    return comparison <= 0;
+                case EQU:
+                    return comparison == 0;
+                case NEQ:
+                    return comparison != 0;
+                case GTE:
+                    return comparison >= 0;
+                default:
+                    return comparison > 0;
+            }
+        }
+
+        private Token bool(Token result, Token right, boolean isTrue) {
+            return Node.bool(result, right.getRow(), right.getColumn(), isTrue);
+        }
+    }
+
+    /*
+     * Assignment, which completes a statement and produces nothing. A plain variable is assigned
+     * through its slot; array elements, and anything else the Parser rejects, go through
+     * Parser.processOperator().
+     */
+    static final class Assignment extends Node {
+        private final Parser parser;
+        private final Node lhs;
+        private final Node rhs;
+
+        Assignment(Parser parser, Token token, Node lhs, Node rhs) {
+            super(token);
+            this.parser = parser;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            if (!(lhs instanceof Identifier)) {
+                Token left = lhs.eval(context);
+                return parser.processOperator(Operator.ASSIGNMENT, token, left, rhs.eval(context), context);
+            }
+
+            // The variable exists before the right hand side is evaluated, even if that fails
+            Identifier variable = (Identifier)lhs;
+            context.resolveVariable(variable.slot, variable.getSymbol());
+
+            Token right = rhs.eval(context);
+            parser.assertInitialized(right);
+            context.resolveVariable(variable.slot, variable.getSymbol()).set(right.getValue());
+            return null;
+        }
+    }
+
+    /*
+     * A binary operator whose operands NodeCompiler has inferred to be of the same type, applied
+     * by the TypedOperation chosen for them when the tree was built. Operands that turn out to be
+     * of another type, e.g. a function that returned something other than its declared type, go
+     * through Parser.processOperator() instead.
+     */
+    static final class Typed extends Node {
+        private final Parser parser;
+        private final Operator op;
+        private final TypedOperation operation;
+        private final Node lhs;
+        private final Node rhs;
+        private final int result;
+
+        Typed(Parser parser, Token token, Operator op, TypedOperation operation, Node lhs, Node rhs, int result) {
+            super(token);
+            this.parser = parser;
+            this.op = op;
+            this.operation = operation;
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.result = result;
+        }
+
+        TypedOperation getOperation() {
+            return operation;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return operation.getTokenType();
+        }
+
+        @Override
+        ValueType getValueType() {
+            return operation.getResultType();
+        }
+
+        @Override
+        boolean isTypeCertain() {
+            return operation.getResultType() == ValueType.BOOLEAN;
+        }
+
+        @Override
+        boolean isFoldable() {
+            return lhs.isConstant() && rhs.isConstant();
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            Token left = lhs.eval(context);
+            Token right = rhs.eval(context);
+            if (!operation.accepts(left, right)) {
+                return parser.processOperator(op, token, left, right, context);
+            }
+
+            try {
+                return operation.apply(parser, token, left, right, context.getResultToken(result));
+            } catch (ArithmeticException ex) {
+                throw new ParserException(ex.getMessage(), ex, token.getRow(), token.getColumn());
+            }
+        }
+    }
+
+    /*
+     * AND and OR. When the left operand is a BOOLEAN that decides the result on its own, the right
+     * operand is not evaluated, so @flag AND EXPENSIVE(@x) only calls EXPENSIVE when @flag is true.
+     * The result is positioned where the right operand's would have been, which NodeCompiler works
+     * out in advance; when that depends on a ternary (row -1) the right operand is always evaluated.
+     * Left operands of other types are rejected by Parser.processOperator() as before.
+     */
+    static final class Logical extends Node {
+        private final Parser parser;
+        private final Operator op;
+        private final Node lhs;
+        private final Node rhs;
+        private final int rhsRow;
+        private final int rhsColumn;
+        private final int result;
+
+        Logical(Parser parser, Token token, Operator op, Node lhs, Node rhs, int rhsRow, int rhsColumn, int result) {
+            super(token);
+            this.parser = parser;
+            this.op = op;
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.rhsRow = rhsRow;
+            this.rhsColumn = rhsColumn;
+            this.result = result;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return TokenType.VALUE;
+        }
+
+        @Override
+        ValueType getValueType() {
+            return ValueType.BOOLEAN;
+        }
+
+        @Override
+        boolean isTypeCertain() {
+            return true;
+        }
+
+        @Override
+        boolean isFoldable() {
+            return lhs.isConstant() && rhs.isConstant();
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            Token left = lhs.eval(context);
+            if (left.getValue().getType() != ValueType.BOOLEAN) {
+                return parser.processOperator(op, token, left, rhs.eval(context), context);
+            }
+
+            // false AND x is false, true OR x is true
+            boolean l = left.getValue().asBoolean();
+            if (l == op.equals(Operator.OR) && rhsRow >= 0) {
+                return bool(context.getResultToken(result), rhsRow, rhsColumn, l);
+            }
+
+            Token right = rhs.eval(context);
+            if (right.getValue().getType() == ValueType.BOOLEAN) {
+                return bool(context.getResultToken(result), right.getRow(), right.getColumn(), right.getValue().asBoolean());
+            }
+            return parser.processOperator(op, token, left, right, context);
+        }
+    }
+
+    /*
+     * Relational results are positioned just after the right hand operand
+     */
+    private static Token bool(Token result, int rhsRow, int rhsColumn, boolean isTrue) {
+        return result.reuseBoolean(isTrue, rhsRow, rhsColumn + 1);
+    }
+
+    /*
+     * condition ? trueValue : falseValue. Only the branch selected by the condition is evaluated,
+     * so the other can neither fail the expression nor have side effects.
+     */
+    static final class Ternary extends Node {
+        private final Parser parser;
+        private final Node condition;
+        private final Node trueValue;
+        private final Node falseValue;
+
+        Ternary(Parser parser, Token token, Node condition, Node trueValue, Node falseValue) {
+            super(token);
+            this.parser = parser;
+            this.condition = condition;
+            this.trueValue = trueValue;
+            this.falseValue = falseValue;
+        }
+
+        @Override
+        TokenType getResultType() {
+            TokenType type = trueValue.getResultType();
+            return type != null && type.equals(falseValue.getResultType()) ? type : null;
+        }
+
+        @Override
+        ValueType getValueType() {
+            ValueType type = trueValue.getValueType();
+            return type != null && type.equals(falseValue.getValueType()) ? type : null;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            Token booleanValue = condition.eval(context);
+            parser.assertCondition(booleanValue);
+            return booleanValue.asBoolean() ? trueValue.eval(context) : falseValue.eval(context);
+        }
+    }
+
+    /*
+     * V[], V[i], or V[i,j].
+     */
+    static final class ArrayIndex extends Node {
+        private final Parser parser;
+        private final Node var;
+        private final Node index;
+        private final Node subIndex;
+
+        ArrayIndex(Parser parser, Token token, Node var, Node index, Node subIndex) {
+            super(token);
+            this.parser = parser;
+            this.var = var;
+            this.index = index;
+            this.subIndex = subIndex;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return TokenType.IDENTIFIER;
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            if (var instanceof Identifier) {
+                // Read the element from the variable, which is not copied
+                Value array = ((Identifier) var).resolve(context);
+                Token indexToken = index == null ? null : index.eval(context);
+                Token subIndexToken = subIndex == null ? null : subIndex.eval(context);
+                return parser.processArrayIndex(var.token, array, indexToken, subIndexToken, context);
+            }
+
+            Token varToken = var.eval(context);
+            Token indexToken = index == null ? null : index.eval(context);
+            Token subIndexToken = subIndex == null ? null : subIndex.eval(context);
+            return parser.processArrayIndex(varToken, indexToken, subIndexToken, context);
+        }
+    }
+
+    /*
+     * An occurrence of a subexpression that SharedSubexpressions found more than once in a script.
+     * The first occurrence evaluated stores its result in the context and the others return a copy
+     * positioned where their own result would have been, so errors are still reported at the right
+     * place. Results that carry a suppressed ParserException are not stored.
+     */
+    static final class Shared extends Node {
+        private final Parser parser;
+        private final Node original;
+        private final int slot;
+        private final int row;
+        private final int column;
+        private final int configurationVersion;
+
+        Shared(Parser parser, Node original, int slot, int row, int column, int configurationVersion) {
+            super(original.token);
+            this.parser = parser;
+            this.original = original;
+            this.slot = slot;
+            this.row = row;
+            this.column = column;
+            this.configurationVersion = configurationVersion;
+        }
+
+        int getSlot() {
+            return slot;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return original.getResultType();
+        }
+
+        @Override
+        ValueType getValueType() {
+            return original.getValueType();
+        }
+
+        @Override
+        boolean isTypeCertain() {
+            return original.isTypeCertain();
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            Token[] values = context.getSharedValues();
+            if (values == null || slot >= values.length || parser.getConfigurationVersion() != configurationVersion) {
+                return original.eval(context);
+            }
+
+            Token value = values[slot];
+            if (value == null) {
+                value = original.eval(context);
+                if (value != null && !(value.getValue().asObject() instanceof ParserException)) {
+                    // The original's result token is rewritten by the evaluations that follow
+                    values[slot] = value.isScratch() ? value.copy() : value;
+                }
+                return value;
+            }
+
+            if (value.getRow() == row && value.getColumn() == column) {
+                return value;
+            }
+            return new Token(value.getType(), value.getText(), value.getValue(), row, column);
+        }
+    }
+
+    /*
+     * A node with side effects, i.e. an assignment or a call to a function that is not pure,
+     * which discards the shared results it may have changed once it has been evaluated.
+     */
+    static final class Invalidate extends Node {
+        private final Node node;
+        private final int[] slots;
+
+        /**
+         * @param slots the slots to discard, or null for all of them
+         */
+        Invalidate(Node node, int[] slots) {
+            super(node.token);
+            this.node = node;
+            this.slots = slots;
+        }
+
+        Node getNode() {
+            return node;
+        }
+
+        @Override
+        TokenType getResultType() {
+            return node.getResultType();
+        }
+
+        @Override
+        ValueType getValueType() {
+            return node.getValueType();
+        }
+
+        @Override
+        boolean isTypeCertain() {
+            return node.isTypeCertain();
+        }
+
+        @Override
+        Token eval(EvaluationContext context) throws ParserException {
+            try {
+                return node.eval(context);
+            } finally {
+                context.invalidateSharedValues(slots);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,372 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * Builds a Node tree from the RPN tokens of a single statement by replaying the operand stack
+ * the RPN walker would use, pushing nodes instead of values.
+ *
+ * Statements whose shape depends on values only known at run time, or that the RPN walker
+ * would reject part way through evaluation (a missing operand, an unmatched ternary, tokens left
+ * on the stack), are not compiled. The caller keeps evaluating those with Parser.RPNtoValue()
+ * so that the outcome and the error reported are unchanged.
+ *
+ * Each variable is given a slot in the EvaluationContext's frame the first time the compiler sees
+ * its name, so a statement looks the variable up by name once per evaluation however often it is
+ * referenced. The statements of a script compiled for SharedSubexpressions share one set of slots.
+ * Variables, fields, and the operators that build their results are also each given a slot for
+ * the token in which they return them, which the EvaluationContext reuses between evaluations.
+ *
+ * When compiling the statements of a script for SharedSubexpressions, the compiler also builds
+ * a structural key for each subexpression, counting the keys on the first pass and wrapping the
+ * occurrences of repeated ones in Node.Shared on the second.
+ */
+final class NodeCompiler {
+    private final Parser parser;
+    private final ConstantFolder folder;
+    private final SharedSubexpressions shared;
+    private final Map<String, Integer> variables;
+    private int results;
+
+    /*
+     * Operand stack entry: the node and the index of the first RPN token it was built from, where
+     * its result is positioned (row -1 when that is only known at run time), the variable it
+     * references, if any, and its key for SharedSubexpressions (null if it cannot be shared).
+     */
+    private static class Entry {
+        final Node node;
+        final int first;
+        String key;
+        int row;
+        int column;
+        String variable;
+
+        Entry(Node node, int first) {
+            this.node = node;
+            this.first = first;
+        }
+    }
+
+    /*
+     * Placeholder for the TELSE token, which the RPN walker leaves on the stack for TIF to consume.
+     */
+    private static final class ElseMarker extends Node {
+        ElseMarker(Token token) {
+            super(token);
+        }
+
+        @Override
+        Token eval(EvaluationContext context) {
+            throw new IllegalStateException("TELSE is not evaluated");
+        }
+    }
+
+    NodeCompiler(Parser parser) {
+        this(parser, null);
+    }
+
+    NodeCompiler(Parser parser, SharedSubexpressions shared) {
+        this.parser = parser;
+        this.folder = new ConstantFolder(parser);
+        this.shared = shared;
+        this.variables = shared != null ? shared.getVariables() : new HashMap<String, Integer>();
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /**
+     * The number of frame slots used by the statements compiled so far.
+     */
+    int getVariableCount() {
+        return variables.size();
+    }
+
+    /**
+     * The number of result tokens used by the statements compiled so far.
+     */
+    int getResultCount() {
+        return results;
+    }
+
+    /**
+     * Returns the root of the tree for the tokens or null if the statement cannot be compiled.
+     */
+    Node compile(List<Token> tokens) {
+        Stack<Entry> stack = new Stack<>();
+        Stack<Integer> nothrows = new Stack<>();
+        int tcount = 0;
+
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            Node node;
+            int first = i;
+
+            // Subexpression sharing: the node's key, whether it may be shared, the position of its
+            // result, the variable it references, and whether it invalidates shared results
+            String key = null;
+            boolean shareable = false;
+            int row = token.getRow();
+            int column = token.getColumn();
+            String variable = null;
+            boolean invalidates = false;
+
+            if (TokenType.NOTHROW.equals(token.getType())) {
+                nothrows.push(i);
+                continue;
+            }
+
+            if (token.isProperty()) {
+                node = new Node.Property(parser, token);
+            } else if (token.isField()) {
+                node = new Node.Field(parser, token, results++);
+                key = SharedSubexpressions.fieldKey(fold(token.getText()));
+                shareable = true;
+            } else if (token.isFunction()) {
+                int argc = token.getArgc();
+                if (argc < 0 || !haveOperands(stack, argc)) {
+                    return null;
+                }
+                Node[] arguments = new Node[argc];
+                String[] keys = new String[argc];
+                for (int arg = argc - 1; arg >= 0; arg--) {
+                    Entry entry = stack.pop();
+                    arguments[arg] = entry.node;
+                    keys[arg] = entry.key;
+                    first = entry.first;
+                }
+                Function function = parser.getFunction(token.getText());
+                node = new Node.Call(parser, token, function, arguments);
+
+                if (function != null && function.isDeterministic()) {
+                    key = SharedSubexpressions.callKey(fold(token.getText()), keys);
+                    shareable = true;
+                } else if (function == null || !function.isPure()) {
+                    invalidates = true;
+                }
+            } else if (token.isConstant()) {
+                node = new Node.Constant(parser, token);
+                key = SharedSubexpressions.constantKey(fold(token.getText()));
+            } else if (token.isIdentifer()) {
+                node = new Node.Identifier(parser, token, slot(token.getText()), results++);
+                variable = fold(token.getText());
+                key = SharedSubexpressions.variableKey(variable);
+            } else if (token.isOperator()) {
+                Operator op = Operator.find(token, parser.getCaseSensitive());
+                if (op == null) {
+                    return null;
+                }
+
+                if (Operator.UNARY_PLUS.equals(op)) {
+                    continue;
+                } else if (Operator.UNARY_MINUS.equals(op) || Operator.NOT.equals(op)) {
+                    if (!haveOperands(stack, 1)) {
+                        return null;
+                    }
+                    Entry operand = stack.pop();
+                    node = new Node.Negation(parser, token, operand.node);
+                    first = operand.first;
+                    key = SharedSubexpressions.unaryKey("-", operand.key);
+                    shareable = true;
+                } else if (Operator.TELSE.equals(op)) {
+                    tcount++;
+                    node = new ElseMarker(token);
+                } else {
+                    if (Operator.TIF.equals(op)) {
+                        tcount--;
+                    }
+                    if (tcount % 2 != 0) {
+                        return null;
+                    }
+
+                    if (Operator.PERCENT.equals(op)) {
+                        if (!haveOperands(stack, 1)) {
+                            return null;
+                        }
+                        Entry operand = stack.pop();
+                        node = new Node.Percent(parser, token, operand.node);
+                        first = operand.first;
+                        key = SharedSubexpressions.unaryKey("%", operand.key);
+                        shareable = true;
+                    } else if (Operator.TIF.equals(op)) {
+                        if (stack.isEmpty() || !(stack.pop().node instanceof ElseMarker) || !haveOperands(stack, 3) || nothrows.isEmpty()) {
+                            return null;
+                        }
+                        Entry falseValue = stack.pop();
+                        Entry trueValue = stack.pop();
+                        Entry condition = stack.pop();
+
+                        // The RPN walker suppresses function errors from the NOTHROW token on. Only
+                        // operators may sit between it and the true branch so that the condition is
+                        // evaluated the same way by the tree, which evaluates the selected branch only.
+                        int nothrow = nothrows.pop();
+                        if (nothrow < condition.first || !onlyOperators(tokens, nothrow + 1, trueValue.first)) {
+                            return null;
+                        }
+
+                        node = new Node.Ternary(parser, token, condition.node, trueValue.node, falseValue.node);
+                        first = condition.first;
+
+                        // The result is positioned wherever the selected branch's is
+                        row = -1;
+                    } else {
+                        if (!haveOperands(stack, 2)) {
+                            return null;
+                        }
+                        Entry rhs = stack.pop();
+                        Entry lhs = stack.pop();
+
+                        // An assignment leaves nothing on the stack, so it can only complete the statement
+                        if (Operator.ASSIGNMENT.equals(op) && (i != tokens.size() - 1 || !stack.isEmpty())) {
+                            return null;
+                        }
+
+                        TypedOperation operation = TypedOperation.find(op, lhs.node.getValueType(), rhs.node.getValueType());
+                        if (Operator.ASSIGNMENT.equals(op)) {
+                            node = new Node.Assignment(parser, token, lhs.node, rhs.node);
+                        } else if (op.inSet(Operator.AND, Operator.OR)) {
+                            node = new Node.Logical(parser, token, op, lhs.node, rhs.node, rhs.row, rhs.column, results++);
+                        } else if (operation != null) {
+                            node = new Node.Typed(parser, token, op, operation, lhs.node, rhs.node, results++);
+                        } else {
+                            node = new Node.Binary(parser, token, op, lhs.node, rhs.node, results++);
+                        }
+                        first = lhs.first;
+
+                        if (Operator.ASSIGNMENT.equals(op)) {
+                            variable = lhs.variable;
+                            invalidates = true;
+                        } else {
+                            key = SharedSubexpressions.binaryKey(op, lhs.key, rhs.key);
+                            shareable = true;
+                            if (TokenType.VALUE.equals(node.getResultType())) {
+                                // Relational results are positioned just after the right operand
+                                row = rhs.row;
+                                column = rhs.column + 1;
+                            }
+                        }
+                    }
+                }
+            } else if (token.getText().equals(Operator.LBRACKET.getText())) {
+                // Whether the operands are indexes depends on their token types, which must be known now
+                Node index = null;
+                Node subIndex = null;
+                if (!haveOperands(stack, 1) || stack.peek().node.getResultType() == null) {
+                    return null;
+                }
+                if (TokenType.NUMBER.equals(stack.peek().node.getResultType())) {
+                    index = stack.pop().node;
+                    if (!haveOperands(stack, 1) || stack.peek().node.getResultType() == null) {
+                        return null;
+                    }
+                    if (TokenType.NUMBER.equals(stack.peek().node.getResultType())) {
+                        subIndex = index;
+                        index = stack.pop().node;
+                        if (!haveOperands(stack, 1) || !TokenType.IDENTIFIER.equals(stack.peek().node.getResultType())) {
+                            return null;
+                        }
+                    }
+                }
+
+                if (!haveOperands(stack, 1)) {
+                    return null;
+                }
+                Entry var = stack.pop();
+                node = new Node.ArrayIndex(parser, token, var.node, index, subIndex);
+                first = var.first;
+                row = var.row;
+                column = var.column;
+                variable = var.variable;
+            } else {
+                node = new Node.Literal(token);
+                key = SharedSubexpressions.literalKey(token);
+            }
+
+            node = folder.fold(node);
+            if (shared != null) {
+                node = share(node, shareable ? key : null, row, column, invalidates ? variable : null, invalidates);
+            }
+
+            Entry entry = new Entry(node, first);
+            entry.key = key;
+            entry.row = row;
+            entry.column = column;
+            entry.variable = variable;
+            stack.push(entry);
+        }
+
+        if (tcount != 0 || !nothrows.isEmpty() || stack.size() != 1 || stack.peek().node instanceof ElseMarker) {
+            return null;
+        }
+
+        return stack.pop().node;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /*
+     * Count the key of a shareable subexpression, or, once slots have been assigned, wrap repeated
+     * ones in Node.Shared and the nodes that may change shared results in Node.Invalidate. Constant
+     * nodes are cheaper to evaluate than to share.
+     */
+    private Node share(Node node, String key, int row, int column, String assigned, boolean invalidates) {
+        if (shared.isCounting()) {
+            if (key != null && !node.isConstant()) {
+                shared.count(key);
+            }
+            return node;
+        }
+
+        int slot = shared.getSlot(key);
+        if (slot >= 0 && !node.isConstant()) {
+            return new Node.Shared(parser, node, slot, row, column, shared.getConfigurationVersion());
+        } else if (invalidates && shared.size() > 0) {
+            // An assignment invalidates what reads the variable; other side effects may change anything
+            int[] slots = assigned != null ? shared.getSlotsReading(assigned) : null;
+            return new Node.Invalidate(node, slots);
+        }
+        return node;
+    }
+
+    /*
+     * Slots are given by the name as written; names that only differ by case when the parser is
+     * case insensitive get slots of their own that hold the same variable.
+     */
+    private int slot(String name) {
+        Integer slot = variables.get(name);
+        if (slot == null) {
+            slot = variables.size();
+            variables.put(name, slot);
+        }
+        return slot;
+    }
+
+    private String fold(String name) {
+        return parser.foldName(name);
+    }
+
+    private boolean haveOperands(Stack<Entry> stack, int count) {
+        if (stack.size() < count) {
+            return false;
+        }
+        for (int i = stack.size() - count; i < stack.size(); i++) {
+            if (stack.get(i).node instanceof ElseMarker) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean onlyOperators(List<Token> tokens, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Token token = tokens.get(i);
+            if (!token.isOperator() || token.opEquals(Operator.TIF) || token.opEquals(Operator.TELSE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
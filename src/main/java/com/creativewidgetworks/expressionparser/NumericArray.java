@@ -0,0 +1,169 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The elements of an array created by DIMN: numbers held as doubles in row-major order,
+ * eight bytes per element instead of a Value each. Elements start at zero and hold about 15
+ * significant digits; they are read back as the shortest number that identifies the double, so
+ * 0.1 reads as 0.1 and 1.50 as 1.5. Only the storage is primitive: get() creates a BigDecimal for
+ * each element read.
+ *
+ * A Value holding the array shares it with its copies until one of them assigns an element.
+ *
+ * Large arrays can instead be held off-heap in a direct buffer (see Parser.setOffHeapArrayElements),
+ * so that long-lived lookup tables do not add to the heap the garbage collector manages. The memory
+ * of a direct buffer is returned when the buffer is collected; release() drops the array's buffer so
+ * that happens as soon as possible rather than when the last Value referring to the array goes.
+ */
+final class NumericArray {
+    // Null once released
+    private DoubleBuffer elements;
+    private final int rows;
+
+    // 0 for a one dimensional array
+    private final int columns;
+
+    NumericArray(int rows, int columns) {
+        this(rows, columns, false);
+    }
+
+    NumericArray(int rows, int columns, boolean offHeap) {
+        this(allocate(rows * Math.max(columns, 1), offHeap), rows, columns);
+    }
+
+    private NumericArray(DoubleBuffer elements, int rows, int columns) {
+        this.elements = elements;
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    int getRows() {
+        return rows;
+    }
+
+    int getColumns() {
+        return columns;
+    }
+
+    boolean isTwoDimensional() {
+        return columns > 0;
+    }
+
+    boolean isOffHeap() {
+        return elements != null && elements.isDirect();
+    }
+
+    /*
+     * Drops the elements, the memory of an off-heap array being returned once the buffer is collected.
+     * The array must not be used afterwards.
+     */
+    void release() {
+        elements = null;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    BigDecimal get(int row, int column) {
+        return toNumber(elements.get(row * Math.max(columns, 1) + column));
+    }
+
+    /**
+     * @throws ArithmeticException if the number is too large to be held
+     */
+    void set(int row, int column, BigDecimal value) {
+        elements.put(row * Math.max(columns, 1) + column, toDouble(value));
+    }
+
+    /*
+     * A one dimensional copy of a row of a two dimensional array, held on the heap.
+     */
+    NumericArray row(int row) {
+        double[] values = new double[columns];
+        for (int column = 0; column < columns; column++) {
+            values[column] = elements.get(row * columns + column);
+        }
+        return new NumericArray(DoubleBuffer.wrap(values), columns, 0);
+    }
+
+    /*
+     * Replace a row of a two dimensional array with the elements of a one dimensional array of the same length.
+     */
+    void setRow(int row, NumericArray values) {
+        for (int column = 0; column < columns; column++) {
+            elements.put(row * columns + column, values.elements.get(column));
+        }
+    }
+
+    /*
+     * A copy held in the same way, on or off the heap.
+     */
+    NumericArray copy() {
+        DoubleBuffer copy = allocate(elements.capacity(), elements.isDirect());
+        copy.put(elements.duplicate());
+        return new NumericArray(copy, rows, columns);
+    }
+
+    /*
+     * The elements as the Values DIM would have created, rows holding arrays of their own.
+     */
+    List<Value> toValues() {
+        List<Value> values = new ArrayList<>(rows);
+        for (int row = 0; row < rows; row++) {
+            if (isTwoDimensional()) {
+                Value value = new Value();
+                for (int column = 0; column < columns; column++) {
+                    value.addValueToArray(new Value().setValue(get(row, column)));
+                }
+                values.add(value);
+            } else {
+                values.add(new Value().setValue(get(row, 0)));
+            }
+        }
+        return values;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    private static DoubleBuffer allocate(int size, boolean offHeap) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        return DoubleBuffer.allocate(size);
+    }
+
+    private static BigDecimal toNumber(double d) {
+        // Whole numbers, the common case, without formatting the double
+        if (d == Math.rint(d) && Math.abs(d) < 0x1p53) {
+            return BigDecimal.valueOf((long) d);
+        }
+        BigDecimal bd = BigDecimal.valueOf(d).stripTrailingZeros();
+        return bd.scale() < 0 ? bd.setScale(0) : bd;
+    }
+
+    private static double toDouble(BigDecimal value) {
+        double d = value.doubleValue();
+        if (Double.isInfinite(d)) {
+            throw new ArithmeticException(ParserException.formatMessage("error.not_a_number"));
+        }
+        return d;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /**
+     * As with the value DIM assigns, an array reads as ARRAY.
+     */
+    @Override
+    public String toString() {
+        return "ARRAY";
+    }
+
+}
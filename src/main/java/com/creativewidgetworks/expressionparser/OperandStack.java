@@ -0,0 +1,91 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.Stack;
+
+/**
+ * Operand stack used while evaluating an expression. Functions receive it as the Stack their
+ * handlers are declared to take, but built-ins that need the variables being evaluated (DIM) can
+ * reach the context.
+ *
+ * A stack belongs to one EvaluationContext, which is used by one thread at a time, so the
+ * operations function calls perform on every evaluation are not synchronized as Stack's are.
+ * The methods it inherits remain synchronized; the lock is simply never contended.
+ */
+class OperandStack extends Stack<Token> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient EvaluationContext context;
+
+    OperandStack(EvaluationContext context) {
+        this.context = context;
+    }
+
+    EvaluationContext getContext() {
+        return context;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    @Override
+    public Token push(Token item) {
+        if (elementCount == elementData.length) {
+            elementData = Arrays.copyOf(elementData, Math.max(elementCount * 2, 10));
+        }
+        elementData[elementCount++] = item;
+        modCount++;
+        return item;
+    }
+
+    @Override
+    public Token pop() {
+        Token item = peek();
+        elementData[--elementCount] = null;
+        modCount++;
+        return item;
+    }
+
+    @Override
+    public Token peek() {
+        if (elementCount == 0) {
+            throw new EmptyStackException();
+        }
+        return (Token) elementData[elementCount - 1];
+    }
+
+    @Override
+    public Token get(int index) {
+        if (index < 0 || index >= elementCount) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return (Token) elementData[index];
+    }
+
+    @Override
+    public int size() {
+        return elementCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return elementCount == 0;
+    }
+
+    @Override
+    public boolean empty() {
+        return elementCount == 0;
+    }
+
+    @Override
+    public void setSize(int newSize) {
+        if (newSize < 0 || newSize > elementCount) {
+            super.setSize(newSize);
+            return;
+        }
+        Arrays.fill(elementData, newSize, elementCount, null);
+        elementCount = newSize;
+        modCount++;
+    }
+
+}
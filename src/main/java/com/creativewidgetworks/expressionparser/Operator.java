@@ -87,8 +87,14 @@ enum Operator {
      *
      */
     public static Operator find(Token token, boolean caseSensitive) {
-        String key = (token == null || token.getText() == null) ? "" : token.getText().toUpperCase();
-        return caseInsensitiveMap.get(key);
+        return token == null ? null : token.getOperator();
+    }
+
+    /*
+     * The operator named by the text, ignoring case.
+     */
+    static Operator forText(String text) {
+        return caseInsensitiveMap.get(text == null ? "" : text.toUpperCase());
     }
 
     public boolean inSet(Operator... operators) {
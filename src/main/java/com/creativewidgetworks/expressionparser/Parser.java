@@ -15,18 +15,26 @@ public class Parser {
     // Default numeric precision (number of decimal places)
     public static final int DEFAULT_PRECISION = 5;
 
+    // Name of the value returned when there is nothing to evaluate
+    static final String EMPTY_EXPRESSION = "ERROR: EMPTY EXPRESSION";
+
     // Maximum size of arrays that can be created by DIM
     public static int MAX_DIM_ROWS = 10000;
     public static int MAX_DIM_COLS = 256;
 
+    // Maximum number of elements of arrays that can be created by DIMN, at eight bytes each
+    public static final int MAX_DIMN_ELEMENTS = 1 << 24;
+
     // By default, disable access to system and environment properties
     private boolean allowProperties = false;
 
+    // Number of elements from which arrays created by DIMN are held off-heap; 0 keeps them all on the heap
+    private int offHeapArrayElements = 0;
+
     // By default, use the JVM's timezone
     private TimeZone localTimeZone = TimeZone.getDefault();
 
     private static final String DEFAULT_SPLIT_CHARACTER = ";";
-    private static final String SPLIT_REGEX = "(?=([^\\\"\\']*[\\\"\\'][^\\\"\\']*[\\\"\\'])*[^\\\"\\']*$)";
 
     // Number of digits of precision for math operations
     private int precision = DEFAULT_PRECISION;
@@ -34,11 +42,15 @@ public class Parser {
     // RegEx tokenizer - package level for testing
     private boolean caseSensitive;
     private Pattern combinedPattern;
+
+    // Tokenizes like combinedPattern; null until needed or when the pattern has to be used
+    private Lexer lexer;
+    private boolean lexerCreated;
     private String expressionDelimiter;
-    final Map<String,List<Token>> tokenizedExpressions = new HashMap<>();
+    final Map<String,Statement> tokenizedExpressions = new HashMap<>();
+    final Map<String,CompiledExpression> compiledScripts = new HashMap<>();
 
     // Status
-    private ParserException lastException;
     private String lastExpression;
 
     // Containers for constants, functions, and variables
@@ -49,11 +61,19 @@ public class Parser {
     
     private FieldInterface fieldInterface;
 
-    private boolean suppressParseExceptions;
+    // Context used by eval() and CompiledExpression.eval(); shares the variables map above
+    private EvaluationContext context;
+
+    // Incremented when a setting that folded constants depend on changes
+    private int configurationVersion;
+
+    // Canonical names when case insensitive
+    private final SymbolTable symbols = new SymbolTable();
 
     public Parser() {
         caseSensitive = false;
         expressionDelimiter = DEFAULT_SPLIT_CHARACTER;
+        context = new EvaluationContext(this, variables);
         clearConstants();
         clearFunctions();
     }
@@ -61,16 +81,17 @@ public class Parser {
     public Parser(Parser parser) {
         this();
         allowProperties = parser.allowProperties;
+        offHeapArrayElements = parser.offHeapArrayElements;
         expressionDelimiter = parser.expressionDelimiter;
         fieldInterface = parser.fieldInterface;
         localTimeZone = parser.localTimeZone;
         precision = parser.precision;
-        suppressParseExceptions = parser.suppressParseExceptions;
         caseSensitive = parser.getCaseSensitive();
         constants = parser.getConstants();
         functions = parser.getFunctions();
         globals = parser.getGlobalVariables();
         variables = parser.getVariables();
+        context = new EvaluationContext(this, variables);
     }
 
     /*----------------------------------------------------------------------------*/
@@ -83,6 +104,23 @@ public class Parser {
 
     /*----------------------------------------------------------------------------*/
 
+    public int getOffHeapArrayElements() {
+        return offHeapArrayElements;
+    }
+
+    /**
+     * Arrays created by DIMN with at least this many elements are held in direct buffers outside of
+     * the heap, and released when the variable holding them is cleared by clearVariable() or
+     * clearVariables(). 0, the default, keeps all arrays on the heap.
+     */
+    public int setOffHeapArrayElements(int offHeapArrayElements) {
+        int orgOffHeapArrayElements = this.offHeapArrayElements;
+        this.offHeapArrayElements = Math.max(offHeapArrayElements, 0);
+        return orgOffHeapArrayElements;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
     public TimeZone getTimeZone() {
         return localTimeZone;
     }
@@ -90,6 +128,7 @@ public class Parser {
     public TimeZone setTimeZone(TimeZone timezone) {
         TimeZone orgTimeZone = this.localTimeZone;
         this.localTimeZone = timezone;
+        configurationChanged();
         return orgTimeZone;
     }
 
@@ -126,13 +165,25 @@ public class Parser {
 
     public void addConstant(String name, BigDecimal value) {
         if (name != null) {
-            constants.put(caseSensitive ? name : name.toUpperCase(), value);
+            constants.put(foldName(name), value);
             invalidatePattern();
         }
     }
 
+    /**
+     * Add several constants at once; the tokenizer is rebuilt once, when next needed.
+     */
+    public void addConstants(Map<String, BigDecimal> constants) {
+        for (Map.Entry<String, BigDecimal> entry : constants.entrySet()) {
+            if (entry.getKey() != null) {
+                this.constants.put(foldName(entry.getKey()), entry.getValue());
+            }
+        }
+        invalidatePattern();
+    }
+
     public void clearConstant(String name) {
-        constants.remove(caseSensitive ? name : name.toUpperCase());
+        constants.remove(foldName(name));
         invalidatePattern();
     }
 
@@ -144,7 +195,7 @@ public class Parser {
     }
 
     public BigDecimal getConstant(String name) {
-        return name == null ? null : constants.get(caseSensitive ? name : name.toUpperCase());
+        return name == null ? null : constants.get(foldName(name));
     }
 
     public Map<String, BigDecimal> getConstants() {
@@ -152,12 +203,27 @@ public class Parser {
     }
 
     public String getConstantRegex() {
+        return alternation(getConstantNames());
+    }
+
+    /*
+     * The alternatives of the constant regex, in the order they are tried
+     */
+    List<String> getConstantNames() {
         List<String> names = new ArrayList<>();
         names.addAll(constants.keySet());
 
         // Sort in descending order to insure proper matching
         Collections.sort(names, Collections.<String>reverseOrder());
 
+        if (names.isEmpty()) {
+            names.add("~~no-constants-defined~~");
+        }
+
+        return names;
+    }
+
+    private static String alternation(List<String> names) {
         StringBuilder sb = new StringBuilder();
         for (String name : names) {
             if (sb.length() > 0) {
@@ -165,19 +231,19 @@ public class Parser {
             }
             sb.append(name);
         }
-
-        if (sb.length() == 0) {
-            sb.append("~~no-constants-defined~~");
-        }
-
         return sb.toString();
     }
 
     /*----------------------------------------------------------------------------*/
 
     public Value getField(String name) {
-        if (fieldInterface != null) {
-            return fieldInterface.getField(name, getCaseSensitive());
+        return getField(name, context);
+    }
+
+    Value getField(String name, EvaluationContext context) {
+        FieldInterface fields = context.getFieldInterface();
+        if (fields != null) {
+            return fields.getField(name, getCaseSensitive());
         } else {
             return null;
         }
@@ -197,26 +263,39 @@ public class Parser {
 
     public void addFunction(Function function) {
         if (function != null) {
-            functions.put(caseSensitive ? function.getName() : function.getName().toUpperCase(), function);
+            functions.put(foldName(function.getName()), function);
             invalidatePattern();
         }
     }
 
+    /**
+     * Add several functions at once; the tokenizer is rebuilt once, when next needed.
+     */
+    public void addFunctions(Collection<Function> functions) {
+        for (Function function : functions) {
+            if (function != null) {
+                this.functions.put(foldName(function.getName()), function);
+            }
+        }
+        invalidatePattern();
+    }
+
     public void clearFunction(String name) {
-        functions.remove(caseSensitive ? name : name.toUpperCase());
+        functions.remove(foldName(name));
         invalidatePattern();
     }
 
     public void clearFunctions() {
         functions.clear();
-        addFunction(new Function("clearGlobal", this, "_CLEARGLOBAL", 1, 1));
-        addFunction(new Function("clearGlobals", this, "_CLEARGLOBALS", 0, 0));
-        addFunction(new Function("dim", this, "_DIM", 2, 3, ValueType.UNDEFINED, ValueType.NUMBER, ValueType.NUMBER));
-        addFunction(new Function("getGlobal", this, "_GETGLOBAL", 1, 1, ValueType.STRING));
-        addFunction(new Function("setGlobal", this, "_SETGLOBAL", 2, 2, ValueType.STRING));
-        addFunction(new Function("now", this, "_NOW", 0, 1));
-        addFunction(new Function("precision", this, "_PRECISION", 1, 1, ValueType.NUMBER));
-        invalidatePattern();
+        addFunctions(Arrays.asList(
+            new Function("clearGlobal", this, "_CLEARGLOBAL", 1, 1),
+            new Function("clearGlobals", this, "_CLEARGLOBALS", 0, 0),
+            new Function("dim", this, "_DIM", 2, 3, ValueType.UNDEFINED, ValueType.NUMBER, ValueType.NUMBER),
+            new Function("dimN", this, "_DIMN", 2, 3, ValueType.UNDEFINED, ValueType.NUMBER, ValueType.NUMBER),
+            new Function("getGlobal", this, "_GETGLOBAL", 1, 1, ValueType.STRING).setPure(true),
+            new Function("setGlobal", this, "_SETGLOBAL", 2, 2, ValueType.STRING),
+            new Function("now", this, "_NOW", 0, 1).setPure(true).setResultType(ValueType.DATE),
+            new Function("precision", this, "_PRECISION", 1, 1, ValueType.NUMBER).setResultType(ValueType.NUMBER)));
     }
 
     /*---------------------------------------------------------------------------------*/
@@ -243,12 +322,15 @@ public class Parser {
 
     public void invalidatePattern() {
         combinedPattern = null;
+        lexer = null;
+        lexerCreated = false;
+        configurationChanged();
     }
 
     /*---------------------------------------------------------------------------------*/
 
     public Function getFunction(String functionName) {
-        return functionName == null ? null : functions.get(caseSensitive ? functionName : functionName.toUpperCase());
+        return functionName == null ? null : functions.get(foldName(functionName));
     }
 
     public Map<String, Function> getFunctions() {
@@ -256,27 +338,26 @@ public class Parser {
     }
 
     public String getFunctionRegex() {
-        List<String> regexs = new ArrayList<>();
+        return alternation(getFunctionNames());
+    }
+
+    /*
+     * The alternatives of the function regex, in the order they are tried
+     */
+    List<String> getFunctionNames() {
+        List<String> names = new ArrayList<>();
         for (Function function : functions.values()) {
-            regexs.add(function.getName());
+            names.add(function.getName());
         }
 
         // Sort in descending order to insure proper matching
-        Collections.sort(regexs, Collections.<String>reverseOrder());
-
-        StringBuilder sb = new StringBuilder();
-        for (String regex : regexs) {
-            if (sb.length() > 0) {
-                sb.append("|");
-            }
-            sb.append(regex);
-        }
+        Collections.sort(names, Collections.<String>reverseOrder());
 
-        if (sb.length() == 0) {
-            sb.append("~~no-functions-defined~~");
+        if (names.isEmpty()) {
+            names.add("~~no-functions-defined~~");
         }
 
-        return sb.toString();
+        return names;
     }
 
     /*----------------------------------------------------------------------------*/
@@ -294,13 +375,13 @@ public class Parser {
 
     public void addGlobalVariable(String name, Value value) {
         if (name != null && value != null) {
-            globals.put(caseSensitive ? name : name.toUpperCase(), value);
+            globals.put(foldName(name), value);
         }
     }
 
     public void clearGlobalVariable(String name) {
         if (name != null) {
-            globals.remove(caseSensitive ? name : name.toUpperCase());
+            globals.remove(foldName(name));
         }
     }
 
@@ -309,7 +390,7 @@ public class Parser {
     }
 
     public Value getGlobalVariable(String name) {
-        return name == null ? null : globals.get(caseSensitive ? name : name.toUpperCase());
+        return name == null ? null : globals.get(foldName(name));
     }
 
     public Map<String, Value> getGlobalVariables() {
@@ -319,27 +400,35 @@ public class Parser {
     /*----------------------------------------------------------------------------*/
 
     public void addVariable(String name, Value value) {
-        if (name != null && value != null) {
-            variables.put(caseSensitive ? name : name.toUpperCase(), value);
-        }
+        context.addVariable(name, value);
     }
 
     public void clearVariable(String name) {
-        variables.remove(caseSensitive ? name : name.toUpperCase());
+        context.clearVariable(name);
     }
 
     public void clearVariables() {
-        variables.clear();
+        context.clearVariables();
     }
 
     public Value getVariable(String name) {
-        return name == null ? null : variables.get(caseSensitive ? name : name.toUpperCase());
+        return name == null ? null : variables.get(foldName(name));
     }
 
     public Map<String, Value> getVariables() {
         return variables;
     }
 
+    /**
+     * Returns the context eval() uses; its variables are this parser's variables.
+     */
+    public EvaluationContext getContext() {
+        return context;
+    }
+
+    private EvaluationContext contextOf(Stack<Token> stack) {
+        return stack instanceof OperandStack ? ((OperandStack) stack).getContext() : context;
+    }
 
     /*----------------------------------------------------------------------------*/
     /*----------------------------------------------------------------------------*/
@@ -381,7 +470,7 @@ public class Parser {
     private boolean shouldPopToken(Token token, Token topOfStack, boolean caseSensitive) throws ParserException {
         // Unary minus/plus are handled differently if the top token is the exponentiation operator
         Operator op = Operator.find(token, caseSensitive);
-        if (op.inSet(Operator.UNARY_MINUS, Operator.UNARY_PLUS) && Operator.EXP.getText().equals(topOfStack.getText())) {
+        if (op.inSet(Operator.UNARY_MINUS, Operator.UNARY_PLUS) && topOfStack.getOperator() == Operator.EXP) {
             return false;
         } else {
             return
@@ -394,10 +483,11 @@ public class Parser {
 
     public void clearCache() {
         tokenizedExpressions.clear();
+        compiledScripts.clear();
     }
 
     public ParserException getLastException() {
-        return lastException;
+        return context.getLastException();
     }
 
     public String getLastExpression() {
@@ -413,6 +503,7 @@ public class Parser {
     public boolean setCaseSensitive(boolean caseSensitive) {
         boolean oldValue = this.caseSensitive;
         this.caseSensitive = caseSensitive;
+        configurationChanged();
         return oldValue;
     }
 
@@ -425,11 +516,35 @@ public class Parser {
     public int setPrecision(int decimals) {
         int oldValue = this.precision;
         this.precision = decimals;
+        if (oldValue != decimals) {
+            configurationChanged();
+        }
         return oldValue;
     }
 
     /*----------------------------------------------------------------------------*/
 
+    /*
+     * Version of the settings constant folding depends on: precision, time zone, case sensitivity,
+     * constants, functions, and date patterns. Folded values are discarded once it changes.
+     */
+    int getConfigurationVersion() {
+        return configurationVersion;
+    }
+
+    void configurationChanged() {
+        configurationVersion++;
+    }
+
+    /*
+     * The name under which a function, constant, global, or variable is kept.
+     */
+    String foldName(String name) {
+        return caseSensitive ? name : symbols.fold(name);
+    }
+
+    /*----------------------------------------------------------------------------*/
+
     private void setStatusAndFail(Token currentToken, String message, Object... parameters) throws ParserException {
         int errorAtRow = currentToken == null ? -1 : currentToken.getRow();
         int errorAtCol = currentToken == null ? -1 : currentToken.getColumn();
@@ -440,53 +555,107 @@ public class Parser {
     /*----------------------------------------------------------------------------*/
 
     public Value eval(String source) {
-        // Source statements cannot be null
-        if (source == null) {
-            source = "";
-        }
-
-        source += ";";
-
         // Clear results of last parse
-        lastException = null;
-        Value value =  new Value("ERROR: EMPTY EXPRESSION");;
+        context.setLastException(null);
+        Value value =  new Value(EMPTY_EXPRESSION);
+
+        // Once every statement of a script has been compiled, the script is evaluated as a whole so
+        // that the subexpressions its statements repeat are evaluated only once
+        CompiledExpression script = compiledScripts.get(source);
+        if (script != null && script.isCurrent()) {
+            return script.eval(context);
+        }
 
         try {
-            String[] expressions = source.split(expressionDelimiter + SPLIT_REGEX);
-
+            List<String> expressions = splitStatements(source);
+            List<Statement> statements = new ArrayList<>(expressions.size());
             for (String expression : expressions) {
-                if (expression.trim().length() > 0) {
-                    List<Token> tokens = tokenizedExpressions.get(expression);
-                    if (tokens == null) {
-                        lastExpression = expression;
-                        tokens = new ArrayList<Token>();
-                        List<Token> list = tokenize(expression, false);
-                        if (list.size() > 0) {
-                            tokens.addAll(infixToRPN(list));
-                            tokenizedExpressions.put(expression, tokens);
-                        }
-                    }
+                Statement statement = tokenizedExpressions.get(expression);
+                if (statement == null) {
+                    lastExpression = expression;
+                    statement = compileStatement(expression);
+                    tokenizedExpressions.put(expression, statement);
+                } else if (!statement.isCurrent()) {
+                    // Settings have changed since the statement's constants were folded
+                    statement = new Statement(this, statement.getTokens());
+                    tokenizedExpressions.put(expression, statement);
+                }
 
-                    // Restore any token values that may have been updated so cached expressions will continue to work
-                    for (Token token : tokens) {
-                        token.restoreOrgValue();
-                    }
+                // Evaluate the expression
+                value = statement.eval(context);
+                statements.add(statement);
+            }
 
-                    // Evaluate the expression
-                    value = (tokens.size() > 0) ? RPNtoValue(tokens) : new Value("ERROR: EMPTY EXPRESSION");
-                }
+            if (statements.size() > 1) {
+                compiledScripts.put(source, new CompiledExpression(this, source, statements));
             }
         } catch (ParserException ex) {
-            lastException = ex;
-            value = new Value().setValue(lastException);
+            context.setLastException(ex);
+            value = new Value().setValue(ex);
         }
 
         return value;
     }
 
+    /**
+     * Tokenize and convert each statement in the source to RPN once. The returned expression can be
+     * evaluated repeatedly without the splitting, cache lookups, and token bookkeeping of eval().
+     * @param source one or more statements separated by the expression delimiter
+     * @return CompiledExpression, immutable and safe to share between threads
+     * @throws ParserException if any statement cannot be tokenized or converted to RPN
+     */
+    public CompiledExpression compile(String source) throws ParserException {
+        List<Statement> statements = new ArrayList<>();
+        for (String expression : splitStatements(source)) {
+            statements.add(compileStatement(expression));
+        }
+        return new CompiledExpression(this, source, statements);
+    }
+
+    private List<String> splitStatements(String source) {
+        // Source statements cannot be null
+        return Lexer.split(source == null ? "" : source, expressionDelimiter);
+    }
+
+    private Statement compileStatement(String expression) throws ParserException {
+        List<Token> tokens = tokenize(expression, false);
+        return new Statement(this, tokens.size() > 0 ? infixToRPN(tokens) : new ArrayList<Token>());
+    }
+
     /*----------------------------------------------------------------------------*/
 
     public List<Token> tokenize(String input, boolean wantWhitespace) throws ParserException {
+        if (!lexerCreated) {
+            lexer = Lexer.create(this);
+            lexerCreated = true;
+        }
+
+        List<Token> tokens = lexer != null ? lexer.tokenize(input, wantWhitespace) : match(input, wantWhitespace);
+
+        // Remove the NOMATCH signifying end-of-expression
+        if (tokens.size() > 1) {
+            int last = tokens.size() - 1;
+            Token lastToken = tokens.get(last);
+            if (TokenType.NOMATCH.equals(lastToken.getType())) {
+                tokens.remove(last);
+            }
+
+            // Check for invalid tokens in the expression
+            for (Token token : tokens) {
+                if (TokenType.NOMATCH.equals(token.getType())) {
+                    setStatusAndFail(token, "error.invalid_token");
+                }
+            }
+        }
+
+        return tokens;
+    }
+
+    /*
+     * Tokenize with the combined TokenType pattern, which Lexer reproduces without backtracking
+     * when the constant and function names allow.
+     */
+    List<Token> match(String input, boolean wantWhitespace) {
         int offset = 0;
         int row = 1;
 
@@ -498,9 +667,7 @@ public class Parser {
                 for (TokenType tokenType : TokenType.values()) {
                     if (matcher.group(tokenType.name()) != null) {
                         String text = tokenType.resolve(matcher.group(tokenType.name()));
-                        Token token = new Token(tokenType, text, row, matcher.start() + 1 - offset);
-                        token.saveOrgValue();
-                        tokens.add(token);
+                        tokens.add(new Token(tokenType, text, row, matcher.start() + 1 - offset));
                         break;
                     }
                 }
@@ -512,22 +679,6 @@ public class Parser {
             }
         }
 
-        // Remove the NOMATCH signifying end-of-expression
-        if (tokens.size() > 1) {
-            int last = tokens.size() - 1;
-            Token lastToken = tokens.get(last);
-            if (TokenType.NOMATCH.equals(lastToken.getType())) {
-                tokens.remove(last);
-            }
-
-            // Check for invalid tokens in the expression
-            for (Token token : tokens) {
-                if (TokenType.NOMATCH.equals(token.getType())) {
-                    setStatusAndFail(token, "error.invalid_token");
-                }
-            }
-        }
-
         return tokens;
     }
 
@@ -687,21 +838,24 @@ public class Parser {
         }
     }
 
+    private void assertNumber(Token token) throws ParserException {
+        if (token.getValue().getType() != ValueType.NUMBER || token.asNumber() == null) {
+            setStatusAndFail(token, "error.expected_number", token.getValue().getType());
+        }
+    }
+
     private void assertSufficientStack(Token token, Stack<Token> stack, int requiredSize) throws ParserException {
         if (stack.size() < requiredSize) {
             setStatusAndFail(token, "error.syntax");
         }
     }
 
-    private Token processOperators(Token token, Stack<Token> stack) throws ParserException {
-        Token result = null;
-
+    private Token processOperators(Token token, Stack<Token> stack, EvaluationContext context) throws ParserException {
         // Unary: percentage
         Operator op = Operator.find(token, caseSensitive);
         if (op.equals(Operator.PERCENT)) {
             assertSufficientStack(token, stack, 1);
-            BigDecimal bd = stack.pop().asNumber().divide(new BigDecimal(100), getPrecision(), RoundingMode.HALF_UP).stripTrailingZeros();
-            return new Token(TokenType.NUMBER, bd.toPlainString(), token.getRow(), token.getColumn());
+            return processPercent(token, stack.pop());
         }
 
         // Ternary
@@ -714,22 +868,51 @@ public class Parser {
             Token falseValue = stack.pop();
             Token trueValue = stack.pop();
             Token booleanValue =  stack.pop();
-            if (booleanValue.getValue().getType() != ValueType.BOOLEAN) {
-                setStatusAndFail(booleanValue, "error.boolean_expected", booleanValue.getType());
-            }
-
-            suppressParseExceptions = false;
-            Token tValue = booleanValue.asBoolean() ? trueValue : falseValue;
-            if (tValue.asObject() instanceof ParserException) {
-                throw (ParserException)tValue.asObject();
-            }
-
-            return tValue;
+            return processTernary(booleanValue, trueValue, falseValue, context);
         }
 
         assertSufficientStack(token, stack, 2);
         Token rhs = stack.pop();
         Token lhs = stack.pop();
+        return processOperator(op, token, lhs, rhs, context);
+    }
+
+    Token processPercent(Token token, Token operand) {
+        BigDecimal bd = operand.asNumber().divide(new BigDecimal(100), getPrecision(), RoundingMode.HALF_UP).stripTrailingZeros();
+        return number(token, bd);
+    }
+
+    Token processTernary(Token booleanValue, Token trueValue, Token falseValue, EvaluationContext context) throws ParserException {
+        assertCondition(booleanValue);
+
+        context.suppressParseExceptions = false;
+        Token tValue = booleanValue.asBoolean() ? trueValue : falseValue;
+        if (tValue.asObject() instanceof ParserException) {
+            throw (ParserException)tValue.asObject();
+        }
+
+        return tValue;
+    }
+
+    void assertInitialized(Token rhs) throws ParserException {
+        // Trying to assign an uninitialized variable -- could also get here
+        // if user is trying to call a function that doesn't exist.
+        if (rhs.getValue().getType().equals(ValueType.UNDEFINED)) {
+            setStatusAndFail(rhs, "error.expected_initialized", rhs.getText());
+        }
+    }
+
+    void assertCondition(Token booleanValue) throws ParserException {
+        if (booleanValue.getValue().getType() != ValueType.BOOLEAN) {
+            setStatusAndFail(booleanValue, "error.boolean_expected", booleanValue.getType());
+        }
+    }
+
+    /*
+     * Apply a binary operator to its operands. Assignment returns null as nothing is left on the stack.
+     */
+    Token processOperator(Operator op, Token token, Token lhs, Token rhs, EvaluationContext context) throws ParserException {
+        Token result = null;
 
         try {
             if (op.equals(Operator.PLUS)) {
@@ -742,57 +925,58 @@ public class Parser {
                     assertBothNumbers(lhs, rhs);
                     BigDecimal bd = lhs.asNumber().add(rhs.asNumber());
                     bd = bd.setScale(getPrecision(), BigDecimal.ROUND_HALF_UP).stripTrailingZeros();
-                    result = new Token(TokenType.NUMBER, bd.toPlainString(), token.getRow(), token.getColumn());
+                    result = number(token, bd);
                 }
             } else if (op.equals(Operator.MINUS)) {
                 // Subtraction
                 assertBothNumbers(lhs, rhs);
                 BigDecimal bd = lhs.asNumber().subtract(rhs.asNumber());
                 bd = bd.setScale(getPrecision(), BigDecimal.ROUND_HALF_UP).stripTrailingZeros();
-                result = new Token(TokenType.NUMBER, bd.toPlainString(), token.getRow(), token.getColumn());
+                result = number(token, bd);
             } else if (op.equals(Operator.MULT)) {
                 // Multiplication
                 assertBothNumbers(lhs, rhs);
                 BigDecimal bd = lhs.asNumber().multiply(rhs.asNumber());
                 bd = bd.setScale(getPrecision(), BigDecimal.ROUND_HALF_UP).stripTrailingZeros();
-                result = new Token(TokenType.NUMBER, bd.toPlainString(), token.getRow(), token.getColumn());
+                result = number(token, bd);
             } else if (op.equals(Operator.DIV)) {
                 // Division
                 assertBothNumbers(lhs, rhs);
                 int divisorScale = rhs.asNumber().scale();
                 int scale = lhs.asNumber().equals(BigDecimal.ZERO) ? divisorScale : getPrecision();
                 BigDecimal bd = lhs.asNumber().divide(rhs.asNumber(), scale, BigDecimal.ROUND_HALF_UP).stripTrailingZeros();
-                result = new Token(TokenType.NUMBER, bd.toPlainString(), token.getRow(), token.getColumn());
+                result = number(token, bd);
             } else if (op.equals(Operator.IDIV)) {
                 // Integer division
                 assertBothNumbers(lhs, rhs);
                 BigDecimal bd = lhs.asNumber().divideToIntegralValue(rhs.asNumber());
-                result = new Token(TokenType.NUMBER, bd.toPlainString(), token.getRow(), token.getColumn());
+                result = number(token, bd);
             } else if (op.equals(Operator.MODULUS)) {
                 // Modulus
                 assertBothNumbers(lhs, rhs);
                 BigDecimal bd = lhs.asNumber().remainder(rhs.asNumber());
-                result = new Token(TokenType.NUMBER, bd.toPlainString(), token.getRow(), token.getColumn());
+                result = number(token, bd);
             } else if (op.equals(Operator.EXP)) {
                 // Exponentiation x^y
                 assertBothNumbers(lhs, rhs);
                 MathContext mc = rhs.asNumber().compareTo(BigDecimal.ZERO) < 0 ? MathContext.DECIMAL128 : MathContext.UNLIMITED;
                 BigDecimal bd = lhs.asNumber().pow(rhs.asNumber().intValue(), mc);
                 bd = bd.setScale(getPrecision(), BigDecimal.ROUND_HALF_UP).stripTrailingZeros();
-                result = new Token(TokenType.NUMBER, bd.toPlainString(), token.getRow(), token.getColumn());
+                result = number(token, bd);
             } else if (op.equals(Operator.ASSIGNMENT)) {
                 // Assignment
                 if (lhs.isIdentifer()) {
-                    // Trying to assign an uninitialized variable -- could also get here
-                    // if user is trying to call a function that doesn't exist.
-                    if (rhs.getValue().getType().equals(ValueType.UNDEFINED)) {
-                        setStatusAndFail(rhs, "error.expected_initialized", rhs.getText());
-                    }
+                    assertInitialized(rhs);
 
                     // Identifier should always be found as it would have been created when parsing the RPN
                     // stack. Setting one and two dimensional array values is handled here as well.
                     String[] varName = lhs.getText().split("[\\[,\\]]");
-                    Value val = variables.get(varName[0].toUpperCase());
+                    Value val = context.getVariable(varName[0]);
+                    NumericArray numbers = varName.length > 1 ? val.getNumbers() : null;
+                    if (numbers != null) {
+                        assignNumeric(lhs, numbers, varName, rhs);
+                        return null;
+                    }
                     if (varName.length > 1) {
                         val = val.getArray().get(Integer.valueOf(varName[1]).intValue());
                         if (varName.length > 2) {
@@ -805,7 +989,7 @@ public class Parser {
                     setStatusAndFail(lhs, "error.expected_identifier", lhs.getText());
                 }
             } else {
-                result = processRelationalOperators(lhs, token, rhs);
+                result = processRelationalOperators(lhs, op, token, rhs);
             }
         } catch (ArithmeticException ex) {
             throw new ParserException(ex.getMessage(), ex, token.getRow(), token.getColumn());
@@ -814,11 +998,9 @@ public class Parser {
         return result;
     }
 
-    private Token processRelationalOperators(Token lhs, Token operator, Token rhs) throws ParserException {
+    private Token processRelationalOperators(Token lhs, Operator op, Token operator, Token rhs) throws ParserException {
         boolean isTrue = false;
 
-        Operator op = Operator.find(operator, caseSensitive);
-
         if (lhs.getValue().getType() == ValueType.BOOLEAN) {
             if (op.inSet(Operator.EQU, Operator.NEQ, Operator.AND, Operator.OR)) {
                 isTrue = performComparison(lhs.getValue().asBoolean(), rhs.getValue().asBoolean(), op);
@@ -845,7 +1027,17 @@ public class Parser {
             }
         }
 
-        return new Token(TokenType.VALUE, new Value("VALUE", isTrue ? Boolean.TRUE : Boolean.FALSE), rhs.getRow(), rhs.getColumn() + 1);
+        Value value = new Value("VALUE", isTrue ? Boolean.TRUE : Boolean.FALSE);
+        return Token.adopt(TokenType.VALUE, "VALUE", value, rhs.getRow(), rhs.getColumn() + 1);
+    }
+
+    /*
+     * An arithmetic result, valued exactly as parsing bd.toPlainString() would value it, without
+     * formatting and parsing the number again.
+     */
+    private static Token number(Token token, BigDecimal bd) {
+        Value value = new Value("number", bd.scale() < 0 ? bd.setScale(0) : bd);
+        return Token.adopt(TokenType.NUMBER, null, value, token.getRow(), token.getColumn());
     }
 
     @SuppressWarnings("unchecked")
@@ -872,98 +1064,259 @@ public class Parser {
         return isTrue;
     }
 
-    private Token processField(Token field, Stack<Token> stack) throws ParserException {
-        return new Token(TokenType.VALUE, getField(field.getText()), field.getRow(), field.getColumn());
+    Token processProperty(Token property) {
+        Object obj = getProperty(property.getText());
+        Value value = new Value();
+        if (obj instanceof Boolean) {
+            value.setValue((Boolean) obj);
+        } else if (obj instanceof BigDecimal) {
+            value.setValue((BigDecimal) obj);
+        } else if (obj instanceof Date) {
+            value.setValue((Date) obj);
+        } else if (obj != null) {
+            value.setValue(obj.toString());
+        }
+        return new Token(TokenType.PROPERTY, property.getText(), value, property.getRow(), property.getColumn());
     }
 
-    private Token processFunction(Token function, Stack<Token> stack) throws ParserException {
-        Value value = null;
-        String name = function.getText();
-        int orgStackSize = stack.size();
+    Token processConstant(Token constant) {
+        Value value = new Value().setValue(getConstant(constant.getText()));
+        return new Token(TokenType.CONSTANT, constant.getText(), value, constant.getRow(), constant.getColumn());
+    }
 
-        Function f = getFunction(name);
-        if (f != null) {
-            try {
-                value = f.execute(function, stack);
-            } catch (ParserException ex) {
-                // Clean stack
-                int toRemove = function.getArgc() - (orgStackSize - stack.size());
-                for (int i = 0; i < toRemove; i++) {
-                    stack.pop();
+    Token processIdentifier(Token identifier, EvaluationContext context) {
+        // Retrieve the value referenced by the identifier or create an empty placeholder
+        Value value = context.getVariable(identifier.getText());
+        if (value == null) {
+            value = new Value();
+            context.addVariable(identifier.getText(), value);
+        }
+        return new Token(TokenType.IDENTIFIER, identifier.getText(), value, identifier.getRow(), identifier.getColumn());
+    }
+
+    Token processNegation(Token token, Token operand) throws ParserException {
+        Value value = operand.getValue();
+        switch (value.getType()) {
+            case NUMBER:
+                return number(token, value.asNumber().negate());
+            case BOOLEAN:
+                Value inverted = new Value(value).setValue(value.asBoolean() ? Boolean.FALSE : Boolean.TRUE);
+                return new Token(TokenType.VALUE, inverted, token.getRow(), token.getColumn());
+            default:
+                setStatusAndFail(token, "error.type_mismatch", value.getType().name());
+                return null;
+        }
+    }
+
+    /*
+     * Resolve V, V[i], or V[i,j]. Index tokens are null when not supplied.
+     */
+    Token processArrayIndex(Token var, Token index, Token subIndex, EvaluationContext context) throws ParserException {
+        return processArrayIndex(var, var.getValue(), index, subIndex, context);
+    }
+
+    /*
+     * Resolve V, V[i], or V[i,j] where array is the value of the variable named by the var token. Only
+     * the element is copied, so the array may be the variable itself.
+     */
+    Token processArrayIndex(Token var, Value array, Token index, Token subIndex, EvaluationContext context) throws ParserException {
+        // A copy of a value with elements is an ARRAY, whatever the type of the original
+        ValueType type = array.peekArray() != null ? ValueType.ARRAY : array.getType();
+        if (!ValueType.ARRAY.equals(type)) {
+            setStatusAndFail(var, "error.expected_array", type);
+        }
+
+        String strIdx = "";
+        if (index != null) {
+            strIdx = subIndex == null ? index.asString() : index.asString() + "," + subIndex.asString();
+            strIdx = "[" + strIdx + "]";
+        }
+        String valName = var.getText() + strIdx;
+
+        NumericArray numbers = array.peekNumbers();
+        if (numbers != null) {
+            return processNumericIndex(var, numbers, valName, index, subIndex);
+        }
+
+        int idx = 0;
+        Value val = null;
+        if (index != null) {
+            List<Value> elements = array.peekArray();
+            int len = (elements == null) ? -1 : elements.size() - 1;
+
+            // Don't throw exceptions when processing tenaries
+            if (len >=0 || !context.suppressParseExceptions) {
+                idx = index.getValue().asNumber().intValue();
+                if (idx < 0 || idx > len) {
+                    setStatusAndFail(index, "error.index_out_of_range", String.valueOf(idx), String.valueOf(len));
                 }
-                if (!suppressParseExceptions) {
-                    throw ex;
+
+                val = new Value();
+                val.set(elements.get(idx));
+                val.setName(valName);
+
+                if (subIndex != null) {
+                    if (!ValueType.ARRAY.equals(val.getType())) {
+                        setStatusAndFail(var, "error.expected_array", val.getType());
+                    }
+
+                    elements = val.peekArray();
+                    len = (elements == null) ? -1 : elements.size() - 1;
+                    idx = subIndex.getValue().asNumber().intValue();
+                    if (idx < 0 || idx > len) {
+                        setStatusAndFail(subIndex, "error.index_out_of_range", String.valueOf(idx), String.valueOf(len));
+                    }
+                    val = elements.get(idx);
                 }
-                return new Token(TokenType.VALUE, new Value().setValue(ex), function.getRow(), function.getColumn());
             }
+        }
+
+        // V[] is the same as V[0]
+        if (val == null) {
+            List<Value> elements = array.peekArray();
+            val = elements != null && elements.size() > 0 ? elements.get(0) : array;
+        }
+
+        return new Token(TokenType.IDENTIFIER, valName, val, var.getRow(), var.getColumn());
+    }
+
+    /*
+     * Resolve V, V[i], or V[i,j] of an array created by DIMN. A row of a two dimensional array is
+     * returned as a one dimensional copy.
+     */
+    private Token processNumericIndex(Token var, NumericArray numbers, String valName, Token index, Token subIndex) throws ParserException {
+        int row = index == null ? 0 : numericIndex(index, numbers.getRows());
+
+        Value val;
+        if (subIndex != null) {
+            if (!numbers.isTwoDimensional()) {
+                setStatusAndFail(var, "error.expected_array", ValueType.NUMBER);
+            }
+            val = new Value(valName, numbers.get(row, numericIndex(subIndex, numbers.getColumns())));
+        } else if (numbers.isTwoDimensional()) {
+            val = new Value(valName).setValue(numbers.row(row));
+        } else {
+            val = new Value(valName, numbers.get(row, 0));
+        }
+
+        return Token.adopt(TokenType.IDENTIFIER, valName, val, var.getRow(), var.getColumn());
+    }
+
+    private int numericIndex(Token index, int length) throws ParserException {
+        int idx = index.getValue().asNumber().intValue();
+        if (idx < 0 || idx >= length) {
+            setStatusAndFail(index, "error.index_out_of_range", String.valueOf(idx), String.valueOf(length - 1));
+        }
+        return idx;
+    }
+
+    /*
+     * Assign an element, or a row of a two dimensional array, of an array created by DIMN. The
+     * indices have already been checked when the left hand side was resolved.
+     */
+    private void assignNumeric(Token lhs, NumericArray numbers, String[] indices, Token rhs) throws ParserException {
+        int row = Integer.parseInt(indices[1]);
+        if (indices.length > 2) {
+            if (!numbers.isTwoDimensional()) {
+                setStatusAndFail(lhs, "error.expected_array", ValueType.NUMBER);
+            }
+            assertNumber(rhs);
+            numbers.set(row, Integer.parseInt(indices[2]), rhs.asNumber());
+        } else if (numbers.isTwoDimensional()) {
+            NumericArray values = rhs.getValue().peekNumbers();
+            if (values == null || values.isTwoDimensional() || values.getRows() != numbers.getColumns()) {
+                setStatusAndFail(rhs, "error.type_mismatch_generic", "ARRAY of " + numbers.getColumns(), rhs.getValue().getType());
+            }
+            numbers.setRow(row, values);
         } else {
+            assertNumber(rhs);
+            numbers.set(row, 0, rhs.asNumber());
+        }
+    }
+
+    Token processField(Token field, EvaluationContext context) throws ParserException {
+        return new Token(TokenType.VALUE, getField(field.getText(), context), field.getRow(), field.getColumn());
+    }
+
+    Token processFunction(Token function, Stack<Token> stack, EvaluationContext context) throws ParserException {
+        String name = function.getText();
+
+        Function f = getFunction(name);
+        if (f == null) {
             setStatusAndFail(function, "error.no_handler", name);
         }
 
+        return invokeFunction(function, f, null, stack, context);
+    }
+
+    /*
+     * Invoke a function that has already been resolved. When the call was validated as it was
+     * compiled, checks lists the arguments whose types remain to be checked; when null, the call
+     * is validated in full.
+     */
+    Token invokeFunction(Token function, Function f, int[] checks, Stack<Token> stack, EvaluationContext context) throws ParserException {
+        Value value;
+        int orgStackSize = stack.size();
+
+        try {
+            if (checks == null) {
+                value = f.execute(function, stack);
+            } else {
+                f.validateArguments(function, stack, checks);
+                value = f.invoke(function, stack);
+            }
+        } catch (ParserException ex) {
+            // Clean stack
+            int toRemove = function.getArgc() - (orgStackSize - stack.size());
+            for (int i = 0; i < toRemove; i++) {
+                stack.pop();
+            }
+            if (!context.suppressParseExceptions) {
+                throw ex;
+            }
+            return new Token(TokenType.VALUE, new Value().setValue(ex), function.getRow(), function.getColumn());
+        }
+
         return new Token(TokenType.VALUE, value, function.getRow(), function.getColumn());
     }
 
     protected Value RPNtoValue(List<Token> tokens) throws ParserException {
+        return RPNtoValue(tokens, context);
+    }
+
+    /*
+     * Evaluate a list of RPN tokens. The tokens are never modified, so compiled and cached
+     * expressions can be evaluated again without restoring them first.
+     */
+    Value RPNtoValue(List<Token> tokens, EvaluationContext context) throws ParserException {
         int tcount = 0;
         Token last_telse = null;
 
-        Stack<Token> stack = new Stack<>();
+        Stack<Token> stack = new OperandStack(context);
+        context.suppressParseExceptions = false;
 
         for (Token token : tokens) {
             // Trigger suppression of parser exceptions when processing ternaries.
             if (TokenType.NOTHROW.equals(token.getType())) {
-                suppressParseExceptions = true;
+                context.suppressParseExceptions = true;
                 continue;
             }
 
             if (token.isProperty()) {
-                Object obj = getProperty(token.getText());
-                Value value = new Value();
-                if (obj instanceof Boolean) {
-                    value.setValue((Boolean) obj);
-                } else if (obj instanceof BigDecimal) {
-                    value.setValue((BigDecimal) obj);
-                } else if (obj instanceof Date) {
-                    value.setValue((Date) obj);
-                } else if (obj != null) {
-                    value.setValue(obj.toString());
-                }
-                token.setValue(value);
-                stack.push(token);
+                stack.push(processProperty(token));
             } else if (token.isField()) {
-                stack.push(processField(token, stack));
+                stack.push(processField(token, context));
             } else if (token.isFunction()) {
-                stack.push(processFunction(token, stack));
+                stack.push(processFunction(token, stack, context));
             } else if (token.isConstant()) {
-                BigDecimal bd = getConstant(token.getText());
-                token.getValue().setValue(bd);
-                stack.push(token);
+                stack.push(processConstant(token));
             } else if (token.isIdentifer()) {
-                // Retrieve the value referenced by the identifier or create an empty placeholder
-                Value value = variables.get(caseSensitive ? token.getText() : token.getText().toUpperCase());
-                if (value == null) {
-                    value = new Value();
-                    variables.put(caseSensitive ? token.getText() : token.getText().toUpperCase(), value);
-                }
-                token.getValue().set(value);
-                stack.push(token);
+                stack.push(processIdentifier(token, context));
             } else if (token.isOperator()) {
                 // Handle unary minus (negation) and plus
                 Operator op = Operator.find(token, caseSensitive);
                 if (Operator.UNARY_MINUS.equals(op) || Operator.NOT.equals(op)) {
-                    Value value = stack.pop().getValue();
-                    switch (value.getType()) {
-                        case NUMBER:
-                            value.setValue(value.asNumber().negate());
-                            stack.push(new Token(TokenType.NUMBER, value.asString(), token.getRow(), token.getColumn()));
-                            break;
-                        case BOOLEAN:
-                            value.setValue(value.asBoolean() ? Boolean.FALSE : Boolean.TRUE);
-                            stack.push(new Token(TokenType.VALUE, value, token.getRow(), token.getColumn()));
-                            break;
-                        default:
-                            setStatusAndFail(token, "error.type_mismatch", value.getType().name());
-                    }
+                    stack.push(processNegation(token, stack.pop()));
                     continue;
                 } else if (op.equals(Operator.TIF)) {
                     tcount--;
@@ -982,14 +1335,10 @@ public class Parser {
                 }
 
                 // If an assignment has occurred, the result should not be pushed on the stack
-                Token result = processOperators(token, stack);
+                Token result = processOperators(token, stack, context);
                 if (result != null) {
                     stack.push(result);
                 }
-
-
-
-
             } else if (token.getText().equals(Operator.LBRACKET.getText())) {
                 Token index = null;
                 Token subIndex = null;
@@ -1007,61 +1356,10 @@ public class Parser {
                     }
                 }
 
-                Token var = stack.pop();
-
-                if (!ValueType.ARRAY.equals(var.getValue().getType())) {
-                    setStatusAndFail(var, "error.expected_array", var.getValue().getType());
-                }
-
-                String strIdx = "";
-                if (index != null) {
-                    strIdx = subIndex == null ? index.asString() : index.asString() + "," + subIndex.asString();
-                    strIdx = "[" + strIdx + "]";
-                }
-                String valName = var.getText() + strIdx;
-
-                int idx = 0;
-                Value val = null;
-                if (index != null) {
-                    List<Value> array = var.getValue().getArray();
-                    int len = (array == null) ? 0 : array.size() - 1;
-
-                    // Don't throw exceptions when processing tenaries
-                    if (len >=0 || !suppressParseExceptions) {
-                        idx = index.getValue().asNumber().intValue();
-                        if (idx < 0 || idx > len) {
-                            setStatusAndFail(index, "error.index_out_of_range", String.valueOf(idx), String.valueOf(len));
-                        }
-
-                        val = new Value();
-                        val.set(var.getValue().getArray().get(idx));
-                        val.setName(valName);
-
-                        if (subIndex != null) {
-                            if (!ValueType.ARRAY.equals(val.getType())) {
-                                setStatusAndFail(var, "error.expected_array", val.getType());
-                            }
-
-                            array = val.getArray();
-                            len = (array == null) ? 0 : array.size() - 1;
-                            idx = subIndex.getValue().asNumber().intValue();
-                            if (idx < 0 || idx > len) {
-                                setStatusAndFail(subIndex, "error.index_out_of_range", String.valueOf(idx), String.valueOf(len));
-                            }
-                            val = val.getArray().get(idx);
-                        }
-                    }
-                }
-
-                // V[] is the same as V[0]
-                if (val == null) {
-                    int len = var.getValue().getArray().size();
-                    val = len > 0 ? var.getValue().getArray().get(0) : var.getValue();
-                }
-
-                stack.push(new Token(TokenType.IDENTIFIER, valName, val, var.getRow(), var.getColumn()));
-           } else {
-                stack.push(token);
+                stack.push(processArrayIndex(stack.pop(), index, subIndex, context));
+            } else {
+                // A copy, as functions may modify their arguments
+                stack.push(token.copy());
             }
         }
 
@@ -1075,8 +1373,21 @@ public class Parser {
             setStatusAndFail(stack.get(0), "error.syntax");
         }
 
-        // For variable assignment-only expressions, return Boolean.TRUE
-        return stack.size() == 0 ? new Value("empty result", Boolean.TRUE) : stack.pop().getValue();
+        // For variable assignment-only expressions, return Boolean.TRUE. Otherwise return a copy so the
+        // caller cannot modify a value that belongs to a compiled token.
+        return stack.size() == 0 ? new Value("empty result", Boolean.TRUE) : new Value(stack.pop().getValue());
+    }
+
+    /*
+     * Evaluate a statement compiled to a Node tree by NodeCompiler. This is how eval() and
+     * CompiledExpression evaluate; RPNtoValue() remains for statements that have no tree.
+     */
+    Value treeToValue(Node root, EvaluationContext context) throws ParserException {
+        context.suppressParseExceptions = false;
+        Token result = root.eval(context);
+
+        // Assignment-only statements return Boolean.TRUE, the same as RPNtoValue()
+        return result == null ? new Value("empty result", Boolean.TRUE) : new Value(result.getValue());
     }
 
     /*----------------------------------------------------------------------------*/
@@ -1165,11 +1476,59 @@ public class Parser {
         }
 
         args[0].setValue(value);
-        variables.put(args[0].getText().toUpperCase(), args[0].getValue());
+        contextOf(stack).addVariable(args[0].getText(), args[0].getValue());
 
         return value;
     }
 
+    /*
+    * Creates a one or two dimension array of numbers, which start at zero. Elements are stored as doubles
+    * instead of Values, so arrays of up to MAX_DIMN_ELEMENTS elements can be created, and large arrays
+    * are held off-heap when setOffHeapArrayElements() asks for it. Reading an element still creates a
+    * number and a Value for it, as reading an element of a DIM array copies it.
+    *  DIMN(V, 10) -> One dimensional array of 10 numbers is assigned to V
+    *  DIMN(V, 10, 5) -> Two dimensional array of 10 rows, each row containing 5 numbers is assigned to V
+    * Unlike DIM, the result is TRUE rather than the array, which only the variable holds.
+    */
+    public Value _DIMN(Token function, Stack<Token> stack) throws ParserException {
+        // Skip first parameter (variable) because its value will be null and that is okay
+        String nullParams = listOfNullParameters(stack, function.getArgc() - 1);
+        if (nullParams != null) {
+            setStatusAndFail(function, "error.null_parameters", nullParams);
+        }
+
+        Token[] args = popArguments(function, stack);
+
+        if (!TokenType.IDENTIFIER.equals(args[0].getType())) {
+            setStatusAndFail(args[0], "error.expected_identifier", args[0].getType().name());
+        }
+
+        int numRows = args[1].asNumber().intValue();
+        if (numRows < 1 || numRows > MAX_DIMN_ELEMENTS) {
+            setStatusAndFail(args[1], "error.function_value_out_of_range", "DIMN", "numRows", "1",
+                    String.valueOf(MAX_DIMN_ELEMENTS), String.valueOf(numRows));
+        }
+
+        int numCols = 0;
+        if (args.length > 2) {
+            numCols = args[2].asNumber().intValue();
+            int maxCols = MAX_DIMN_ELEMENTS / numRows;
+            if (numCols < 1 || numCols > maxCols) {
+                setStatusAndFail(args[2], "error.function_value_out_of_range", "DIMN", "numCols", "1",
+                        String.valueOf(maxCols), String.valueOf(numCols));
+            }
+        }
+
+        int numElements = numRows * Math.max(numCols, 1);
+        boolean offHeap = offHeapArrayElements > 0 && numElements >= offHeapArrayElements;
+        Value variable = new Value("ARRAY").setValue(new NumericArray(numRows, numCols, offHeap));
+        contextOf(stack).addVariable(args[0].getText(), variable);
+
+        // The variable alone holds the numbers, so assigning an element does not first copy them and
+        // clearing the variable releases them. Like an assignment, DIMN evaluates to TRUE.
+        return new Value().setValue(Boolean.TRUE);
+    }
+
     /*
      * Returns a global variable or null if not found
      * parser.eval("SetGlobal('DOW', 1)");
@@ -1268,7 +1627,7 @@ public class Parser {
         Token token = stack.pop();
         int decimals = token.asNumber().intValue();
         if (decimals >= 0 && decimals <= 100) {
-            precision = decimals;
+            setPrecision(decimals);
         } else {
             String msg = ParserException.formatMessage("error.function_value_out_of_range",
                     function.getText(), "1", "0", "100", String.valueOf(decimals));
@@ -0,0 +1,177 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Common subexpression elimination across the statements of a script. Every statement is first
+ * compiled with the table counting the structural key of each subexpression free of side effects
+ * (fields, variables, operators, and calls to deterministic functions). Subexpressions seen more
+ * than once are given a slot, and compiling the statements again wraps each occurrence in a
+ * Node.Shared so that the first occurrence evaluated stores its result in the EvaluationContext
+ * and the others reuse it, e.g. DATEBOD(@txn_date) or UPPER(TRIM(@country)) used by several rules.
+ *
+ * The statements also share the frame slots NodeCompiler gives their variables, so a variable
+ * is looked up by name once per evaluation of the script rather than once per statement.
+ *
+ * Stored results only live for one evaluation of the script and are discarded when they may no
+ * longer be valid: an assignment discards those that read the variable assigned, and a call to a
+ * function that is not pure (DIM, SETGLOBAL, PRECISION, or a custom function that may change
+ * anything) discards them all. Fields are assumed not to change during an evaluation.
+ */
+final class SharedSubexpressions {
+    private final Parser parser;
+    private final int configurationVersion;
+    private final Map<String, Integer> counts = new HashMap<>();
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Map<String, Integer> variables = new HashMap<>();
+    private boolean counting = true;
+
+    SharedSubexpressions(Parser parser) {
+        this.parser = parser;
+        this.configurationVersion = parser.getConfigurationVersion();
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /**
+     * Compile the statements of a script, sharing the subexpressions they repeat.
+     * Returns the statements unchanged when there is nothing to share.
+     */
+    List<Statement> share(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement.getRoot() != null) {
+                new NodeCompiler(parser, this).compile(statement.getTokens());
+            }
+        }
+
+        if (assignSlots() == 0) {
+            return statements;
+        }
+
+        List<Statement> result = new ArrayList<>(statements.size());
+        for (Statement statement : statements) {
+            if (statement.getRoot() != null) {
+                NodeCompiler compiler = new NodeCompiler(parser, this);
+                Node root = compiler.compile(statement.getTokens());
+                result.add(new Statement(parser, statement.getTokens(), root, compiler.getResultCount()));
+            } else {
+                result.add(statement);
+            }
+        }
+        return result;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    int getConfigurationVersion() {
+        return configurationVersion;
+    }
+
+    /*
+     * Frame slots of the variables referenced by the script, filled in by NodeCompiler.
+     */
+    Map<String, Integer> getVariables() {
+        return variables;
+    }
+
+    int getVariableCount() {
+        return variables.size();
+    }
+
+    boolean isCounting() {
+        return counting;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    void count(String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Give a slot to every key counted more than once and stop counting.
+     */
+    int assignSlots() {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                slots.put(entry.getKey(), slots.size());
+            }
+        }
+        counting = false;
+        return slots.size();
+    }
+
+    /**
+     * The slot for the key, or -1 if it is not shared.
+     */
+    int getSlot(String key) {
+        Integer slot = key == null ? null : slots.get(key);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * The slots of subexpressions that read the (folded) variable name.
+     */
+    int[] getSlotsReading(String variable) {
+        String reference = variableKey(variable);
+        List<Integer> reading = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+            if (entry.getKey().contains(reference)) {
+                reading.add(entry.getValue());
+            }
+        }
+
+        int[] result = new int[reading.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = reading.get(i);
+        }
+        return result;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    // Keys are built bottom up by NodeCompiler. Names are terminated and strings length-prefixed
+    // so that a key can only match the same structure.
+
+    static String variableKey(String name) {
+        return "$" + name + ";";
+    }
+
+    static String fieldKey(String name) {
+        return "@" + name + ";";
+    }
+
+    static String constantKey(String name) {
+        return "#" + name + ";";
+    }
+
+    static String literalKey(Token token) {
+        return "'" + token.getType().name() + token.getText().length() + ":" + token.getText();
+    }
+
+    static String unaryKey(String operator, String operand) {
+        return operand == null ? null : "(" + operator + " " + operand + ")";
+    }
+
+    static String binaryKey(Operator op, String lhs, String rhs) {
+        return lhs == null || rhs == null ? null : "(" + lhs + " " + op.name() + " " + rhs + ")";
+    }
+
+    static String callKey(String name, String[] arguments) {
+        StringBuilder sb = new StringBuilder(name).append('(');
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i] == null) {
+                return null;
+            }
+            sb.append(i == 0 ? "" : ",").append(arguments[i]);
+        }
+        return sb.append(')').toString();
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single statement converted to RPN and, where NodeCompiler can build one, to a Node tree.
+ * Statements that have no tree, such as those the RPN walker rejects part way through, are
+ * evaluated from their RPN tokens so the error reported stays the same.
+ */
+final class Statement {
+    private final Parser parser;
+    private final List<Token> tokens;
+    private final Node root;
+    private final int configurationVersion;
+    private final int frameSize;
+    private final int resultCount;
+
+    Statement(Parser parser, List<Token> tokens) {
+        this.parser = parser;
+        this.configurationVersion = parser.getConfigurationVersion();
+        this.tokens = Collections.unmodifiableList(new ArrayList<>(tokens));
+        NodeCompiler compiler = new NodeCompiler(parser);
+        this.root = tokens.size() > 0 ? compiler.compile(this.tokens) : null;
+        this.frameSize = root != null ? compiler.getVariableCount() : 0;
+        this.resultCount = compiler.getResultCount();
+    }
+
+    /*
+     * A statement whose tree has been compiled by the caller, e.g. with shared subexpressions. The
+     * caller also provides the frame for the tree's variables.
+     */
+    Statement(Parser parser, List<Token> tokens, Node root, int resultCount) {
+        this.parser = parser;
+        this.configurationVersion = parser.getConfigurationVersion();
+        this.tokens = tokens;
+        this.root = root;
+        this.frameSize = 0;
+        this.resultCount = resultCount;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    List<Token> getTokens() {
+        return tokens;
+    }
+
+    Node getRoot() {
+        return root;
+    }
+
+    /*
+     * False once the parser's settings have changed, after which folded constants in the tree
+     * are re-evaluated each time. Recompiling the tokens folds them again.
+     */
+    boolean isCurrent() {
+        return configurationVersion == parser.getConfigurationVersion();
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    Value eval(EvaluationContext context) throws ParserException {
+        if (root != null) {
+            context.enterStatement(frameSize, resultCount);
+            try {
+                return parser.treeToValue(root, context);
+            } finally {
+                context.exit();
+            }
+        } else if (tokens.isEmpty()) {
+            return new Value(Parser.EMPTY_EXPRESSION);
+        }
+
+        // Nothing is known about what the RPN walker changes, so shared results can't be trusted after it
+        try {
+            return parser.RPNtoValue(tokens, context);
+        } finally {
+            context.invalidateSharedValues(null);
+        }
+    }
+
+}
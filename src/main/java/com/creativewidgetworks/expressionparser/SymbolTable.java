@@ -0,0 +1,45 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Canonical names of the functions, constants, globals, and variables of a case insensitive
+ * parser. Each spelling of a name is folded to upper case once, and every spelling of the same
+ * name maps to the same String, which serves as the symbol: the maps keyed by it compare an
+ * identical String by reference and reuse its cached hash instead of allocating a folded copy on
+ * every lookup.
+ *
+ * Compiled statements fold their variable names once when compiled, so evaluating them does not
+ * fold names at all. The table may be used by the threads evaluating a shared CompiledExpression.
+ */
+final class SymbolTable {
+    // Spellings remembered, bounded for ad hoc expressions that name many distinct variables
+    private static final int MAX_SPELLINGS = 1 << 16;
+
+    private final ConcurrentMap<String, String> symbols = new ConcurrentHashMap<>();
+
+    /**
+     * The canonical, upper case form of the name.
+     */
+    String fold(String name) {
+        String symbol = symbols.get(name);
+        if (symbol == null) {
+            String folded = name.toUpperCase();
+            symbol = symbols.get(folded);
+            if (symbol == null) {
+                symbol = folded;
+            }
+            if (symbols.size() < MAX_SPELLINGS) {
+                symbols.putIfAbsent(symbol, symbol);
+                symbols.putIfAbsent(name, symbol);
+            }
+        }
+        return symbol;
+    }
+
+    int size() {
+        return symbols.size();
+    }
+
+}
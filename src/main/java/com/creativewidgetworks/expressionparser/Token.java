@@ -5,17 +5,28 @@ import java.util.Date;
 
 
 public class Token {
-    private final TokenType type;
+    private TokenType type;
 
     private Value value;
-    private Value orgValue;
 
-    private final int row;
-    private final int column;
+    private int row;
+    private int column;
     private String text;
 
+    // Until the text of a lexed token is needed it is the slice [start, end) of its source
+    private CharSequence source;
+    private int start;
+    private int end;
+
+    // The operator the text names, NOT_AN_OPERATOR, or null until resolved by the lexer or on first use
+    private Object operator;
+    private static final Object NOT_AN_OPERATOR = new Object();
+
     private int argc;
 
+    // Set for the result tokens an EvaluationContext reuses, which are rewritten by every evaluation
+    private boolean scratch;
+
     public Token(TokenType type, String text, int row, int column) {
         this(type, text, null, row, column);
         Value value = new Value();
@@ -42,14 +53,112 @@ public class Token {
         this.value = new Value(value);
     }
 
-    /*---------------------------------------------------------------------------------*/
+    private Token(TokenType type, String text, int row, int column, Value value) {
+        this.type = type;
+        this.text = text;
+        this.row = row;
+        this.column = column;
+        this.value = value;
+    }
+
+    private Token(TokenType type, CharSequence source, int start, int end, int row, int column, Value value) {
+        this(type, null, row, column, value);
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    /*
+     * Create a lexed token whose text is a slice of the source, taking ownership of the value.
+     */
+    static Token slice(TokenType type, CharSequence source, int start, int end, Value value, int row, int column) {
+        return new Token(type, source, start, end, row, column, value);
+    }
+
+    /*
+     * Create a token for an intermediate result. The token takes ownership of the value instead of
+     * copying it, so the value must not be shared. The text of a NUMBER may be null, in which case
+     * it is the value's.
+     */
+    static Token adopt(TokenType type, String text, Value value, int row, int column) {
+        return new Token(type, text, row, column, value);
+    }
+
+    /*
+     * Create a token for the results of one node of a compiled statement, which the node rewrites
+     * in place each time it is evaluated (see EvaluationContext.getResultToken()).
+     */
+    static Token scratch() {
+        Token token = new Token(TokenType.VALUE, null, 0, 0, new Value());
+        token.scratch = true;
+        return token;
+    }
+
+    /*
+     * True for a token whose result is replaced when its node is evaluated again. A result that is
+     * kept beyond the evaluation of the node's parent must be copied.
+     */
+    boolean isScratch() {
+        return scratch;
+    }
+
+    /*
+     * A token with the same type, text, and position, and a copy of the value.
+     */
+    Token copy() {
+        Token copy = new Token(type, getText(), value, row, column);
+        copy.argc = argc;
+        return copy;
+    }
+
+    /*
+     * Replace the result held by a scratch token with a copy of the value, as new Token(type, text,
+     * value, row, column) would hold it.
+     */
+    Token reuse(TokenType type, String text, Value value, int row, int column) {
+        reuse(type, text, row, column, null);
+        this.value.clear();
+        this.value.set(value);
+        return this;
+    }
 
-    void saveOrgValue() {
-        orgValue = new Value(value);
+    /*
+     * Replace the result held by a scratch token with a number, valued as new Value("number", bd).
+     */
+    Token reuseNumber(BigDecimal bd, int row, int column) {
+        reuse(TokenType.NUMBER, null, row, column, "number");
+        value.setValue(bd);
+        return this;
     }
 
-    void restoreOrgValue() {
-        value.set(orgValue);
+    /*
+     * Replace the result held by a scratch token with a string, valued as new Value("string", str).
+     */
+    Token reuseString(String str, int row, int column) {
+        reuse(TokenType.STRING, str, row, column, "string");
+        value.setValue(str);
+        return this;
+    }
+
+    /*
+     * Replace the result held by a scratch token with a boolean, valued as new Value("VALUE", isTrue).
+     */
+    Token reuseBoolean(boolean isTrue, int row, int column) {
+        reuse(TokenType.VALUE, "VALUE", row, column, "VALUE");
+        value.setValue(isTrue ? Boolean.TRUE : Boolean.FALSE);
+        return this;
+    }
+
+    private void reuse(TokenType type, String text, int row, int column, String name) {
+        this.type = type;
+        this.text = text;
+        this.source = null;
+        this.operator = null;
+        this.row = row;
+        this.column = column;
+        this.argc = 0;
+        value.unsetArray();
+        value.setName(name);
     }
 
     /*---------------------------------------------------------------------------------*/
@@ -91,6 +200,17 @@ public class Token {
     }
 
     public String getText() {
+        // Compiled tokens may be shared between threads, which at worst each create the text
+        String text = this.text;
+        if (text == null) {
+            if (source != null) {
+                text = source.subSequence(start, end).toString();
+            } else if (TokenType.NUMBER.equals(type) && value != null) {
+                // Arithmetic results are only formatted when their text is needed
+                text = value.asString();
+            }
+            this.text = text;
+        }
         return text;
     }
 
@@ -106,6 +226,31 @@ public class Token {
         return argc;
     }
 
+    /*
+     * The operator the text names, as found by Operator.find(), or null. It is looked up once, as
+     * compiling and evaluating a statement asks for it many times.
+     */
+    Operator getOperator() {
+        // Compiled tokens may be shared between threads, which at worst each look it up
+        Object op = operator;
+        if (op == null) {
+            Operator found = Operator.forText(getText());
+            op = found != null ? found : NOT_AN_OPERATOR;
+            operator = op;
+        }
+        return op == NOT_AN_OPERATOR ? null : (Operator) op;
+    }
+
+    /*
+     * Set the operator the lexer matched, which the text names.
+     */
+    Token setOperator(Operator operator) {
+        if (operator != null) {
+            this.operator = operator;
+        }
+        return this;
+    }
+
     public boolean isConstant() {
         return TokenType.CONSTANT.equals(type);
     }
@@ -130,16 +275,13 @@ public class Token {
      * as such. This routine must not return true for those four types
      * @return true if token is an operator and not an open or close parenthesis
      *
-     * Instead of having to pass in caseSensitivity, departing from the other isXXX methods, the operator
-     * type is searched in case sensitive and case insensitive mode. The searching only occurs for token
-     * types that are functions.
+     * The operator is the one getOperator() resolves from the text the first time it is asked for, or
+     * the one the lexer matched, and is kept with the token (a token naming no operator remembers that
+     * too), so the text is not searched again. The lookup only occurs for OPERATOR tokens.
      */
     public boolean isOperator() {
         if (TokenType.OPERATOR.equals(type)) {
-            Operator op = Operator.find(this, true);
-            if (op == null) {
-                op = Operator.find(this, false);
-            }
+            Operator op = getOperator();
             return !Operator.LPAREN.equals(op) && !Operator.RPAREN.equals(op)  &&
                     !Operator.LBRACKET.equals(op) && !Operator.RBRACKET.equals(op);
         } else {
@@ -148,11 +290,7 @@ public class Token {
     }
 
     public boolean isParen() {
-        Operator op = Operator.find(this, false);
-        if (op == null) {
-            op = Operator.find(this, true);
-        }
-        return TokenType.OPERATOR.equals(type) && Operator.LPAREN.equals(op);
+        return TokenType.OPERATOR.equals(type) && Operator.LPAREN.equals(getOperator());
     }
 
     public boolean isProperty() {
@@ -171,6 +309,8 @@ public class Token {
 
     public Token setText(String text) {
         this.text = text;
+        this.source = null;
+        this.operator = null;
         return this;
     }
 
@@ -183,9 +323,11 @@ public class Token {
 
     public boolean opEquals(Operator... operators) {
         boolean result = false;
+        String text = getText();
         if (text != null && operators != null) {
+            Operator op = getOperator();
             for (Operator operator : operators) {
-                result = operator != null && text.equals(operator.getText());
+                result = operator != null && operator == op && text.equals(operator.getText());
                 if (result) {
                     break;
                 }
@@ -0,0 +1,298 @@
+package com.creativewidgetworks.expressionparser;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Date;
+
+/**
+ * Binary operations specialized for operands of one type. NodeCompiler infers the types of a
+ * statement's subexpressions from literals, operator results, and the result types declared by
+ * functions; when both operands of an operator have the same known type, the operation is chosen
+ * once, e.g. NUMBER_ADD for 2 * @qty + 1 or STRING_EQ for UPPER(@country) == 'US', and neither the
+ * operator nor the operand types are dispatched on again.
+ *
+ * Declared types are not guaranteed, so Node.Typed still confirms the types it receives with
+ * accepts() and hands anything else to Parser.processOperator(). Results are built exactly as
+ * processOperator() builds them.
+ */
+enum TypedOperation {
+    NUMBER_ADD(Operator.PLUS, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return number(result, token, round(parser, left.asNumber().add(right.asNumber())));
+        }
+    },
+    NUMBER_SUBTRACT(Operator.MINUS, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return number(result, token, round(parser, left.asNumber().subtract(right.asNumber())));
+        }
+    },
+    NUMBER_MULTIPLY(Operator.MULT, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return number(result, token, round(parser, left.asNumber().multiply(right.asNumber())));
+        }
+    },
+    NUMBER_DIVIDE(Operator.DIV, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            BigDecimal l = left.asNumber();
+            BigDecimal r = right.asNumber();
+            int scale = l.equals(BigDecimal.ZERO) ? r.scale() : parser.getPrecision();
+            return number(result, token, l.divide(r, scale, RoundingMode.HALF_UP).stripTrailingZeros());
+        }
+    },
+    NUMBER_IDIV(Operator.IDIV, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return number(result, token, left.asNumber().divideToIntegralValue(right.asNumber()));
+        }
+    },
+    NUMBER_MODULUS(Operator.MODULUS, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return number(result, token, left.asNumber().remainder(right.asNumber()));
+        }
+    },
+    NUMBER_POWER(Operator.EXP, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            BigDecimal r = right.asNumber();
+            MathContext mc = r.compareTo(BigDecimal.ZERO) < 0 ? MathContext.DECIMAL128 : MathContext.UNLIMITED;
+            return number(result, token, round(parser, left.asNumber().pow(r.intValue(), mc)));
+        }
+    },
+    NUMBER_LT(Operator.LT, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return bool(result, right, left.asNumber().compareTo(right.asNumber()) < 0);
+        }
+    },
+    NUMBER_LTE(Operator.LTE, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return bool(result, right, left.asNumber().compareTo(right.asNumber()) <= 0);
+        }
+    },
+    NUMBER_EQ(Operator.EQU, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return bool(result, right, left.asNumber().compareTo(right.asNumber()) == 0);
+        }
+    },
+    NUMBER_NEQ(Operator.NEQ, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return bool(result, right, left.asNumber().compareTo(right.asNumber()) != 0);
+        }
+    },
+    NUMBER_GTE(Operator.GTE, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return bool(result, right, left.asNumber().compareTo(right.asNumber()) >= 0);
+        }
+    },
+    NUMBER_GT(Operator.GT, ValueType.NUMBER) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return bool(result, right, left.asNumber().compareTo(right.asNumber()) > 0);
+        }
+    },
+    STRING_CONCAT(Operator.PLUS, ValueType.STRING) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            String l = left.asString();
+            String r = right.asString();
+            String str = (l == null ? "" : l) + (r == null ? "" : r);
+            return result.reuseString(str, token.getRow(), token.getColumn());
+        }
+    },
+    STRING_LT(Operator.LT, ValueType.STRING) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            String l = left.asString();
+            String r = right.asString();
+            return bool(result, right, l != null && r != null && l.compareTo(r) < 0);
+        }
+    },
+    STRING_LTE(Operator.LTE, ValueType.STRING) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            String l = left.asString();
+            String r = right.asString();
+            return bool(result, right, l != null && r != null && l.compareTo(r) <= 0);
+        }
+    },
+    STRING_EQ(Operator.EQU, ValueType.STRING) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            String l = left.asString();
+            String r = right.asString();
+            return bool(result, right, l != null && r != null && l.compareTo(r) == 0);
+        }
+    },
+    STRING_NEQ(Operator.NEQ, ValueType.STRING) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            String l = left.asString();
+            String r = right.asString();
+            return bool(result, right, l != null && r != null && l.compareTo(r) != 0);
+        }
+    },
+    STRING_GTE(Operator.GTE, ValueType.STRING) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            String l = left.asString();
+            String r = right.asString();
+            return bool(result, right, l != null && r != null && l.compareTo(r) >= 0);
+        }
+    },
+    STRING_GT(Operator.GT, ValueType.STRING) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            String l = left.asString();
+            String r = right.asString();
+            return bool(result, right, l != null && r != null && l.compareTo(r) > 0);
+        }
+    },
+    DATE_LT(Operator.LT, ValueType.DATE) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            Date l = left.asDate();
+            Date r = right.asDate();
+            return bool(result, right, l != null && r != null && l.compareTo(r) < 0);
+        }
+    },
+    DATE_LTE(Operator.LTE, ValueType.DATE) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            Date l = left.asDate();
+            Date r = right.asDate();
+            return bool(result, right, l != null && r != null && l.compareTo(r) <= 0);
+        }
+    },
+    DATE_EQ(Operator.EQU, ValueType.DATE) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            Date l = left.asDate();
+            Date r = right.asDate();
+            return bool(result, right, l != null && r != null && l.compareTo(r) == 0);
+        }
+    },
+    DATE_NEQ(Operator.NEQ, ValueType.DATE) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            Date l = left.asDate();
+            Date r = right.asDate();
+            return bool(result, right, l != null && r != null && l.compareTo(r) != 0);
+        }
+    },
+    DATE_GTE(Operator.GTE, ValueType.DATE) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            Date l = left.asDate();
+            Date r = right.asDate();
+            return bool(result, right, l != null && r != null && l.compareTo(r) >= 0);
+        }
+    },
+    DATE_GT(Operator.GT, ValueType.DATE) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            Date l = left.asDate();
+            Date r = right.asDate();
+            return bool(result, right, l != null && r != null && l.compareTo(r) > 0);
+        }
+    },
+    BOOLEAN_EQ(Operator.EQU, ValueType.BOOLEAN) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return bool(result, right, left.getValue().asBoolean().equals(right.getValue().asBoolean()));
+        }
+    },
+    BOOLEAN_NEQ(Operator.NEQ, ValueType.BOOLEAN) {
+        @Override
+        Token apply(Parser parser, Token token, Token left, Token right, Token result) {
+            return bool(result, right, !left.getValue().asBoolean().equals(right.getValue().asBoolean()));
+        }
+    };
+
+    private final Operator operator;
+    private final ValueType operandType;
+
+    TypedOperation(Operator operator, ValueType operandType) {
+        this.operator = operator;
+        this.operandType = operandType;
+    }
+
+    /*----------------------------------------------------------------------------*/
+
+    /**
+     * The operation for the operator when both operands are of the given type, or null if there is none.
+     */
+    static TypedOperation find(Operator operator, ValueType lhsType, ValueType rhsType) {
+        if (lhsType != null && lhsType.equals(rhsType)) {
+            for (TypedOperation operation : values()) {
+                if (operation.operator.equals(operator) && operation.operandType.equals(lhsType)) {
+                    return operation;
+                }
+            }
+        }
+        return null;
+    }
+
+    ValueType getResultType() {
+        boolean arithmetic = operator.inSet(Operator.PLUS, Operator.MINUS, Operator.MULT, Operator.DIV,
+                Operator.IDIV, Operator.MODULUS, Operator.EXP);
+        return arithmetic ? operandType : ValueType.BOOLEAN;
+    }
+
+    /**
+     * The type of the result token: NUMBER, STRING, or VALUE for relational results.
+     */
+    TokenType getTokenType() {
+        ValueType resultType = getResultType();
+        if (resultType == ValueType.NUMBER) {
+            return TokenType.NUMBER;
+        }
+        return resultType == ValueType.STRING ? TokenType.STRING : TokenType.VALUE;
+    }
+
+    /**
+     * True if both operands are of the operation's type; numbers must also have a value.
+     */
+    boolean accepts(Token left, Token right) {
+        Value l = left.getValue();
+        Value r = right.getValue();
+        if (l.getType() != operandType || r.getType() != operandType) {
+            return false;
+        }
+        return operandType != ValueType.NUMBER || (l.asNumber() != null && r.asNumber() != null);
+    }
+
+    /**
+     * Apply the operation to operands that have been accepted, returning the result in the scratch
+     * token given (see EvaluationContext.getResultToken()).
+     */
+    abstract Token apply(Parser parser, Token token, Token left, Token right, Token result) throws ParserException;
+
+    /*----------------------------------------------------------------------------*/
+
+    private static BigDecimal round(Parser parser, BigDecimal bd) {
+        return bd.setScale(parser.getPrecision(), RoundingMode.HALF_UP).stripTrailingZeros();
+    }
+
+    private static Token number(Token result, Token token, BigDecimal bd) {
+        // Same value as parsing bd.toPlainString(), which is how processOperator() builds its result
+        return result.reuseNumber(bd.scale() < 0 ? bd.setScale(0) : bd, token.getRow(), token.getColumn());
+    }
+
+    /*
+     * Relational results are positioned just after the right hand operand
+     */
+    private static Token bool(Token result, Token right, boolean isTrue) {
+        return result.reuseBoolean(isTrue, right.getRow(), right.getColumn() + 1);
+    }
+
+}
@@ -5,17 +5,38 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+/**
+ * A value holds one canonical representation, set by the last setValue(): the object given, which
+ * is returned by asObject(). The string, number, and date views asString(), asNumber(), and asDate()
+ * are derived from it when first asked for and then kept, so e.g. a number that is only compared
+ * is never formatted. Copies share the immutable representation and views, and copy only a Date.
+ * A date derived from a number is not kept, as a Date can be modified.
+ *
+ * The elements of an array are shared by copies too, until one of the values sharing them is
+ * modified through getArray() or addValueToArray(), which first gives it elements of its own. A copy
+ * of a large array, e.g. the variable read by V[3], therefore costs the same as one of a number.
+ * The numbers of an array created by DIMN are held in a NumericArray, shared in the same way, and
+ * released when the variable holding them is cleared.
+ */
 @SuppressWarnings("unused")
 public class Value {
 
     private String name;
     private ValueType type = ValueType.UNDEFINED;
-    private Object valueObj = null;
-    private String valueStr = "";
-    private BigDecimal valueNum = BigDecimal.ZERO;
-    private Date valueDate = null;
     private List<Value> array = null;
 
+    // True when copies of this value may hold the same array or NumericArray, which must then not be modified
+    private boolean arrayShared;
+
+    // The type of the setValue() that stored valueObj, which unlike type is not changed by setType()
+    private ValueType held = ValueType.UNDEFINED;
+    private Object valueObj = null;
+
+    // Views derived from valueObj, or null until asked for
+    private String valueStr;
+    private BigDecimal valueNum;
+    private Date valueDate;
+
     public Value() { /**/ }
 
     public Value(String name) {
@@ -43,34 +64,57 @@ public class Value {
 
     public final Value clear() {
         this.type = ValueType.UNDEFINED;
-        this.valueStr = "";
-        this.valueNum = BigDecimal.ZERO;
-        this.valueDate = null;
-        this.valueObj = null;
+        hold(ValueType.UNDEFINED, null);
         unsetArray();
         return this;
     }
 
     public final void set(Value var) {
-        if (var != null) {
+        if (var != null && var != this) {
             this.name = var.name;
             this.type = var.type;
+            this.held = var.held;
             this.valueObj = var.valueObj;
             this.valueStr = var.valueStr;
-            this.valueNum = var.valueNum == null ? null : new BigDecimal(var.valueNum.toPlainString());
-            this.valueDate = var.valueDate == null ? null : new Date(var.valueDate.getTime());
+
+            // Copies hold numbers as parsing their plain string would, i.e. with no negative scale
+            BigDecimal num = var.valueNum != null ? var.valueNum : var.valueObj instanceof BigDecimal ? (BigDecimal) var.valueObj : null;
+            this.valueNum = num == null || num.scale() >= 0 ? num : num.setScale(0);
+
+            // Dates can be modified, so a copy has its own; one derived from a number is derived again.
+            // The original is only read, as it may be shared by threads evaluating a compiled expression.
+            Date date = var.valueDate != null ? var.valueDate : var.valueObj instanceof Date ? (Date) var.valueObj : null;
+            this.valueDate = date == null ? null : new Date(date.getTime());
+
             if (var.array != null) {
                 this.type = ValueType.ARRAY;
-                this.array = new ArrayList<>(var.array.size());
-                for (Value v : var.array) {
-                    this.array.add(new Value(v));
+                this.array = var.array;
+                this.arrayShared = true;
+                if (!var.arrayShared) {
+                    var.arrayShared = true;
                 }
             } else {
                 this.array = null;
+                this.arrayShared = var.held == ValueType.ARRAY;
+                if (arrayShared && !var.arrayShared) {
+                    var.arrayShared = true;
+                }
             }
         }
     }
 
+    private void hold(ValueType held, Object value) {
+        if (this.held == ValueType.ARRAY) {
+            // Dropping a NumericArray
+            arrayShared = array != null && arrayShared;
+        }
+        this.held = held;
+        this.valueObj = value;
+        this.valueStr = null;
+        this.valueNum = null;
+        this.valueDate = null;
+    }
+
    /*----------------------------------------------------------------------------*/
 
     public String getName() {
@@ -94,35 +138,149 @@ public class Value {
     /*----------------------------------------------------------------------------*/
 
     public void addValueToArray(Value value) {
-        if (array == null) {
+        if (getArray() == null) {
             array = new ArrayList<>();
         }
-        array.add(value);
+        getArray().add(value);
     }
 
+    /**
+     * The elements of an array value, or null. The list and its elements belong to this value and
+     * may be modified. The numbers of an array created by DIMN are first converted to the Values DIM
+     * would have created.
+     */
     public List<Value> getArray() {
+        if (held == ValueType.ARRAY) {
+            array = ((NumericArray) valueObj).toValues();
+            arrayShared = false;
+            hold(ValueType.OBJECT, ValueType.ARRAY);
+        } else if (arrayShared) {
+            // Copying an element shares its own elements in turn
+            List<Value> elements = new ArrayList<>(array.size());
+            for (Value v : array) {
+                elements.add(new Value(v));
+            }
+            array = elements;
+            arrayShared = false;
+        }
         return array;
     }
 
+    /*
+     * The elements of an array value, or null, for reading only: they may be shared with copies.
+     */
+    List<Value> peekArray() {
+        return array;
+    }
+
+    /*
+     * The numbers of an array created by DIMN, or null, for reading only: they may be shared with copies.
+     */
+    NumericArray peekNumbers() {
+        return held == ValueType.ARRAY ? (NumericArray) valueObj : null;
+    }
+
+    /*
+     * The numbers of an array created by DIMN, or null, which belong to this value and may be modified.
+     */
+    NumericArray getNumbers() {
+        if (held != ValueType.ARRAY) {
+            return null;
+        }
+        if (arrayShared) {
+            valueObj = ((NumericArray) valueObj).copy();
+            arrayShared = false;
+        }
+        return (NumericArray) valueObj;
+    }
+
+    Value setValue(NumericArray numbers) {
+        unsetArray();
+        hold(ValueType.ARRAY, numbers);
+        arrayShared = false;
+        setType(ValueType.ARRAY);
+        return this;
+    }
+
+    /*
+     * Releases the numbers of an array created by DIMN when no copy shares them, as a variable holding
+     * the value is cleared, so that off-heap memory is returned without waiting for the value to go.
+     */
+    void release() {
+        if (held == ValueType.ARRAY && !arrayShared) {
+            ((NumericArray) valueObj).release();
+            hold(ValueType.UNDEFINED, null);
+        }
+    }
+
+    /*
+     * Derives the views now and marks any elements as shared, so that evaluating a compiled expression
+     * only reads a value its tree holds (a literal, a folded constant, or a remembered result), however
+     * many threads evaluate it.
+     */
+    Value prepareForSharing() {
+        asString();
+        asNumber();
+        asDate();
+        if (array != null || held == ValueType.ARRAY) {
+            arrayShared = true;
+        }
+        return this;
+    }
+
     public final void unsetArray() {
         if (array != null) {
-            array.clear();
+            if (!arrayShared) {
+                array.clear();
+            }
             array = null;
+            arrayShared = false;
+        } else if (held == ValueType.ARRAY) {
+            hold(ValueType.UNDEFINED, null);
         }
     }
 
     /*----------------------------------------------------------------------------*/
 
     public Boolean asBoolean() {
-        return BigDecimal.ONE.equals(valueNum);
+        if (held == ValueType.BOOLEAN) {
+            return Boolean.TRUE.equals(valueObj);
+        }
+        return BigDecimal.ONE.equals(asNumber());
     }
 
     public Date asDate() {
-        return valueDate;
+        Date date = valueDate;
+        if (date == null) {
+            if (held == ValueType.NUMBER) {
+                return valueObj == null ? null : new Date(((BigDecimal) valueObj).longValue());
+            } else if (valueObj instanceof Date) {
+                date = (Date) valueObj;
+                valueDate = date;
+            }
+        }
+        return date;
     }
 
     public BigDecimal asNumber() {
-        return valueNum;
+        BigDecimal num = valueNum;
+        if (num == null) {
+            switch (held) {
+                case BOOLEAN:
+                    return Boolean.TRUE.equals(valueObj) ? BigDecimal.ONE : BigDecimal.ZERO;
+                case DATE:
+                    num = valueObj == null ? null : new BigDecimal(((Date) valueObj).getTime());
+                    break;
+                case NUMBER:
+                case OBJECT:
+                case ARRAY:
+                    return valueObj instanceof BigDecimal ? (BigDecimal) valueObj : null;
+                default:
+                    return BigDecimal.ZERO;
+            }
+            valueNum = num;
+        }
+        return num;
     }
 
     public Object asObject() {
@@ -130,58 +288,53 @@ public class Value {
     }
 
     public String asString() {
-        return valueStr;
+        String str = valueStr;
+        if (str == null) {
+            switch (held) {
+                case BOOLEAN:
+                    return Boolean.TRUE.equals(valueObj) ? "1" : "0";
+                case NUMBER:
+                    str = valueObj == null ? null : ((BigDecimal) valueObj).toPlainString();
+                    break;
+                case UNDEFINED:
+                    return "";
+                default:
+                    str = valueObj == null ? null : valueObj.toString();
+                    break;
+            }
+            valueStr = str;
+        }
+        return str;
     }
 
     public Value setValue(BigDecimal value) {
-        this.valueObj = value;
-        this.valueNum = value;
-        this.valueStr = (value == null) ? null : value.toPlainString();
-        this.valueDate = (value == null) ? null : new Date(value.longValue());
+        hold(ValueType.NUMBER, value);
         setType(ValueType.NUMBER);
         return this;
     }
 
     @SuppressWarnings("UnusedReturnValue")
     public Value setValue(Boolean value) {
-        this.valueObj = value;
-        boolean val = value != null && value;
-        this.valueStr = val ? "1" : "0";
-        this.valueNum = val ? BigDecimal.ONE : BigDecimal.ZERO;
-        this.valueDate = null;
+        hold(ValueType.BOOLEAN, value);
         setType(ValueType.BOOLEAN);
         return this;
     }
 
     public Value setValue(Date value) {
-        this.valueObj = value;
-        this.valueDate = value;
-        if (valueDate != null) {
-            this.valueNum = new BigDecimal(valueDate.getTime());
-            this.valueStr = valueDate.toString();
-        } else {
-            this.valueNum = null;
-            this.valueStr = null;
-        }
+        hold(ValueType.DATE, value);
         setType(ValueType.DATE);
         return this;
     }
 
     public Value setValue(Object value) {
-        this.valueObj = value;
-        this.valueStr = value == null ? null : value.toString();
-        this.valueNum = (value != null && value instanceof BigDecimal) ? (BigDecimal) value : null;
-        this.valueDate = (value != null && value instanceof Date) ? (Date) value : null;
+        hold(ValueType.OBJECT, value);
         setType(ValueType.OBJECT);
         return this;
     }
 
     @SuppressWarnings("UnusedReturnValue")
     public Value setValue(String value) {
-        this.valueObj = value;
-        this.valueStr = value;
-        this.valueNum = BigDecimal.ZERO;
-        this.valueDate = null;
+        hold(ValueType.STRING, value);
         setType(ValueType.STRING);
         return this;
     }
@@ -208,8 +361,8 @@ public class Value {
                 sb.append("UNDEFINED");
                 break;
         }
-        sb.append(" str=").append(valueStr);
-        sb.append(" num=").append(valueNum);
+        sb.append(" str=").append(asString());
+        sb.append(" num=").append(asNumber());
         return sb.toString();
     }
 
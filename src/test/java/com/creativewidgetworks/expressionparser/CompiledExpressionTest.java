@@ -0,0 +1,226 @@
+package com.creativewidgetworks.expressionparser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CompiledExpressionTest extends UnitTestBase {
+
+    private Parser parser;
+
+    @Before
+    public void beforeEach() {
+        parser = new Parser();
+        FunctionToolbox.register(parser);
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    private FieldInterface fields(final String name, final Value value) {
+        return new FieldInterface() {
+            public Value getField(String fieldName, boolean caseSensitive) {
+                return name.equals(fieldName) ? value : null;
+            }
+        };
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    @Test
+    public void testCompileAndEval() throws Exception {
+        CompiledExpression expression = parser.compile("( 1 -2) * (3/4)-(  5+6)");
+        assertEquals("( 1 -2) * (3/4)-(  5+6)", expression.getSource());
+        assertSame(parser, expression.getParser());
+
+        for (int i = 0; i < 3; i++) {
+            Value value = expression.eval();
+            assertEquals(ValueType.NUMBER, value.getType());
+            assertEquals(new BigDecimal("-11.75"), value.asNumber());
+        }
+    }
+
+    @Test
+    public void testEmptySource() throws Exception {
+        Value value = parser.compile(null).eval();
+        assertEquals("ERROR: EMPTY EXPRESSION", value.getName());
+
+        value = parser.compile(" ").eval();
+        assertEquals("ERROR: EMPTY EXPRESSION", value.getName());
+    }
+
+    @Test
+    public void testCompileErrorThrown() {
+        try {
+            parser.compile("A=1; (1 + 2");
+            fail("ParserException expected");
+        } catch (ParserException ex) {
+            assertEquals("Syntax error, missing parenthesis. Expected )", ex.getMessage());
+            assertEquals(1, ex.getErrorRow());
+            assertEquals(7, ex.getErrorColumn());
+        }
+    }
+
+    @Test
+    public void testCompiledTokensNotModified() throws Exception {
+        CompiledExpression expression = parser.compile("-2");
+        assertEquals(new BigDecimal("-2"), expression.eval().asNumber());
+        assertEquals(new BigDecimal("-2"), expression.eval().asNumber());
+
+        expression = parser.compile("NOT (1 == 1)");
+        assertFalse(expression.eval().asBoolean());
+        assertFalse(expression.eval().asBoolean());
+
+        // Modifying the result must not leak into the next evaluation
+        expression = parser.compile("'abc'");
+        expression.eval().setValue("xyz");
+        assertEquals("abc", expression.eval().asString());
+    }
+
+    @Test
+    public void testMultipleStatements() throws Exception {
+        CompiledExpression expression = parser.compile("A=3;B=7;A*B");
+        assertEquals(new BigDecimal("21"), expression.eval().asNumber());
+        assertEquals(new BigDecimal("3"), parser.getVariable("A").asNumber());
+    }
+
+    @Test
+    public void testContextVariablesAreIsolated() throws Exception {
+        CompiledExpression expression = parser.compile("COUNT = COUNT + 1; COUNT");
+
+        EvaluationContext context1 = new EvaluationContext(parser);
+        context1.addVariable("count", new Value().setValue(BigDecimal.ZERO));
+        EvaluationContext context2 = new EvaluationContext(parser);
+        context2.addVariable("count", new Value().setValue(BigDecimal.TEN));
+
+        assertEquals(new BigDecimal("1"), expression.eval(context1).asNumber());
+        assertEquals(new BigDecimal("2"), expression.eval(context1).asNumber());
+        assertEquals(new BigDecimal("11"), expression.eval(context2).asNumber());
+        assertNull("parser variables untouched", parser.getVariable("COUNT"));
+    }
+
+    @Test
+    public void testContextDim() throws Exception {
+        EvaluationContext context = new EvaluationContext(parser);
+        parser.compile("DIM(V, 3); V[1] = 'x'").eval(context);
+        assertNull(parser.getVariable("V"));
+        assertEquals("x", parser.compile("V[1]").eval(context).asString());
+    }
+
+    @Test
+    public void testContextFields() throws Exception {
+        parser.setFieldInterface(fields("amount", new Value("amount", new BigDecimal("5"))));
+        CompiledExpression expression = parser.compile("@amount * 2");
+
+        EvaluationContext context = new EvaluationContext(parser);
+        assertEquals(new BigDecimal("10"), expression.eval(context).asNumber());
+
+        context.setFieldInterface(fields("amount", new Value("amount", new BigDecimal("7"))));
+        assertEquals(new BigDecimal("14"), expression.eval(context).asNumber());
+    }
+
+    @Test
+    public void testContextLastException() throws Exception {
+        CompiledExpression expression = parser.compile("A / B");
+        EvaluationContext context = new EvaluationContext(parser);
+        context.addVariable("A", new Value().setValue(BigDecimal.ONE));
+        context.addVariable("B", new Value().setValue(BigDecimal.ZERO));
+
+        Value value = expression.eval(context);
+        assertTrue(value.asObject() instanceof ParserException);
+        assertEquals("/ by zero", context.getLastException().getMessage());
+        assertNull("parser status untouched", parser.getLastException());
+
+        context.getVariable("B").setValue(BigDecimal.ONE);
+        expression.eval(context);
+        assertNull(context.getLastException());
+    }
+
+    @Test
+    public void testUnusedTernaryBranch() throws Exception {
+        CompiledExpression expression = parser.compile("ISBLANK(@name) ? 'Okay' : DATEFORMAT('yyyyMMdd', null)");
+        assertEquals("Okay", expression.eval().asString());
+        assertEquals("Okay", expression.eval().asString());
+    }
+
+    @Test
+    public void testResultsNotShared() throws Exception {
+        CompiledExpression expression = parser.compile("@amount * 2 > 10 ? @amount * 2 : @amount + 1");
+        EvaluationContext context = new EvaluationContext(parser);
+
+        context.setFieldInterface(fields("amount", new Value("amount", new BigDecimal("7"))));
+        Value first = expression.eval(context);
+        context.setFieldInterface(fields("amount", new Value("amount", new BigDecimal("2"))));
+        Value second = expression.eval(context);
+
+        assertEquals(new BigDecimal("14"), first.asNumber());
+        assertEquals(new BigDecimal("3"), second.asNumber());
+    }
+
+    @Test
+    public void testArgumentsKeptByFunctions() throws Exception {
+        CompiledExpression expression = parser.compile("A = 5; setGlobal('G', A * 2); A * 3");
+        assertEquals(new BigDecimal("15"), expression.eval().asNumber());
+        assertEquals(new BigDecimal("10"), parser.getGlobalVariable("G").asNumber());
+    }
+
+    public static class NestedFunctions {
+        private CompiledExpression nested;
+
+        public Value _NESTED(Token function, Stack<Token> stack) {
+            EvaluationContext context = ((OperandStack) stack).getContext();
+            return nested.eval(context);
+        }
+    }
+
+    @Test
+    public void testNestedEvaluation() throws Exception {
+        NestedFunctions functions = new NestedFunctions();
+        parser.addFunction(new Function("NESTED", functions, "_NESTED", 0, 0));
+        functions.nested = parser.compile("B * 5 + 1");
+
+        CompiledExpression expression = parser.compile("A * 2 + NESTED() + A * 3");
+        EvaluationContext context = new EvaluationContext(parser);
+        context.addVariable("A", new Value().setValue(BigDecimal.ONE));
+        context.addVariable("B", new Value().setValue(BigDecimal.TEN));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(new BigDecimal("56"), expression.eval(context).asNumber());
+        }
+    }
+
+    @Test
+    public void testConcurrentEvaluation() throws Exception {
+        final CompiledExpression expression = parser.compile("TOTAL = X * 2 + 1; UPPER('a') + TOTAL");
+        final AtomicInteger failures = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    EvaluationContext context = new EvaluationContext(parser);
+                    for (int i = 0; i < 2000; i++) {
+                        int x = seed * 10000 + i;
+                        context.addVariable("X", new Value().setValue(BigDecimal.valueOf(x)));
+                        if (!("A" + (x * 2 + 1)).equals(expression.eval(context).asString())) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("failed evaluations", 0, failures.get());
+    }
+}
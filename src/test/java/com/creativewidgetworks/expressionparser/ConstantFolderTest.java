@@ -0,0 +1,117 @@
+package com.creativewidgetworks.expressionparser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.TimeZone;
+
+public class ConstantFolderTest extends UnitTestBase {
+
+    private Parser parser;
+
+    @Before
+    public void beforeEach() {
+        parser = new Parser();
+        FunctionToolbox.register(parser);
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    private Node root(CompiledExpression expression, int statement) {
+        return expression.getStatements().get(statement).getRoot();
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    @Test
+    public void testFoldsLiteralSubexpressions() throws Exception {
+        CompiledExpression expression = parser.compile("1 + 2 * 3");
+        assertTrue(root(expression, 0) instanceof Node.Folded);
+        assertEquals(new BigDecimal("7"), expression.eval().asNumber());
+
+        expression = parser.compile("'a' + 'b' == 'ab'");
+        assertTrue(root(expression, 0) instanceof Node.Folded);
+        assertTrue(expression.eval().asBoolean());
+    }
+
+    @Test
+    public void testFoldsOperandsOfVariableExpressions() throws Exception {
+        parser.setFieldInterface(new FieldInterface() {
+            public Value getField(String name, boolean caseSensitive) {
+                return new Value(name, new BigDecimal("100"));
+            }
+        });
+
+        CompiledExpression expression = parser.compile("@amount * (1 + 0.075) > 100 * 12");
+        assertFalse(root(expression, 0) instanceof Node.Folded);
+        assertFalse(expression.eval().asBoolean());
+
+        expression = parser.compile("@amount * (1 + 0.075)");
+        assertEquals(new BigDecimal("107.5"), expression.eval().asNumber());
+    }
+
+    @Test
+    public void testFoldsConstantsAndDeterministicFunctions() throws Exception {
+        assertTrue(root(parser.compile("PI"), 0) instanceof Node.Folded);
+        assertTrue(root(parser.compile("UPPER('abc')"), 0) instanceof Node.Folded);
+        assertTrue(root(parser.compile("SQRT(2) * 2"), 0) instanceof Node.Folded);
+        assertEquals("ABC", parser.compile("UPPER('abc')").eval().asString());
+
+        assertFalse(root(parser.compile("RANDOM()"), 0) instanceof Node.Folded);
+        assertFalse(root(parser.compile("NOW()"), 0) instanceof Node.Folded);
+        assertFalse(root(parser.compile("GETGLOBAL('abc')"), 0) instanceof Node.Folded);
+        assertFalse(root(parser.compile("UPPER(A)"), 0) instanceof Node.Folded);
+    }
+
+    @Test
+    public void testFailuresAreNotFolded() throws Exception {
+        CompiledExpression expression = parser.compile("1 / 0");
+        assertFalse(root(expression, 0) instanceof Node.Folded);
+
+        Value value = expression.eval();
+        assertEquals("/ by zero", ((ParserException)value.asObject()).getMessage());
+
+        // The unused branch of a ternary must still not fail the expression
+        expression = parser.compile("1 == 1 ? 'Okay' : SQRT(-1)");
+        assertEquals("Okay", expression.eval().asString());
+    }
+
+    @Test
+    public void testSettingChangesDiscardFoldedValues() throws Exception {
+        CompiledExpression expression = parser.compile("1 / 3");
+        assertEquals(new BigDecimal("0.33333"), expression.eval().asNumber());
+
+        parser.setPrecision(2);
+        assertEquals(new BigDecimal("0.33"), expression.eval().asNumber());
+
+        expression = parser.compile("PI * 2");
+        parser.addConstant("PI", new BigDecimal("3"));
+        assertEquals(new BigDecimal("6"), expression.eval().asNumber());
+
+        parser.setTimeZone(TimeZone.getTimeZone("America/Chicago"));
+        expression = parser.compile("MAKEDATE('2020-01-01 12:00:00')");
+        Date chicago = expression.eval().asDate();
+        parser.setTimeZone(TimeZone.getTimeZone("UTC"));
+        assertEquals(chicago.getTime() - 6 * 3600 * 1000, expression.eval().asDate().getTime());
+    }
+
+    @Test
+    public void testPrecisionChangedByScript() throws Exception {
+        CompiledExpression expression = parser.compile("PRECISION(2); 1 / 3");
+        assertEquals(new BigDecimal("0.33"), expression.eval().asNumber());
+
+        parser.setPrecision(5);
+        assertEquals(new BigDecimal("5.33"), parser.compile("PRECISION(2) + 1 / 3").eval().asNumber());
+    }
+
+    @Test
+    public void testEvalRefoldsCachedStatements() throws Exception {
+        assertEquals(new BigDecimal("0.33333"), parser.eval("1 / 3").asNumber());
+        parser.setPrecision(2);
+        assertEquals(new BigDecimal("0.33"), parser.eval("1 / 3").asNumber());
+        assertTrue(parser.tokenizedExpressions.get("1 / 3").isCurrent());
+    }
+
+}
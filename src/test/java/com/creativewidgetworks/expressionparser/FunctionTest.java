@@ -4,6 +4,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.math.BigDecimal;
 import java.util.Stack;
 
 public class FunctionTest extends UnitTestBase {
@@ -29,25 +30,46 @@ public class FunctionTest extends UnitTestBase {
         return new Value();
     }
 
+    @SuppressWarnings("unused")
+    public Value _FAIL(Token function, Stack<Token> stack) throws ParserException {
+        String text = stack.pop().asString();
+        if ("parser".equals(text)) {
+            throw new ParserException("parser failure", function.getRow(), function.getColumn());
+        }
+        throw text == null ? new IllegalStateException() : new IllegalArgumentException(text);
+    }
+
+    @SuppressWarnings("unused")
+    public Value _BUMP(Token function, Stack<Token> stack) {
+        // Modifies its argument in place
+        Value value = stack.pop().getValue();
+        return value.setValue(value.asNumber().add(BigDecimal.ONE));
+    }
+
+    @SuppressWarnings("unused")
+    public static Value _STATIC(Token function, Stack<Token> stack) {
+        return new Value().setValue(function.getText());
+    }
+
    /*---------------------------------------------------------------------------------*/
 
     @Test
     public void testGetFunctionRegex_no_functions() {
-        assertEquals("setGlobal|precision|now|getGlobal|dim|clearGlobals|clearGlobal", parser.getFunctionRegex());
+        assertEquals("setGlobal|precision|now|getGlobal|dimN|dim|clearGlobals|clearGlobal", parser.getFunctionRegex());
     }
 
     @Test
     public void testGetFunctionRegEx_case_insensitive() {
         parser.addFunction(new Function("alpha", this, "_ALPHA", 0, 0));
         parser.addFunction(new Function("beta", this, "_BETA", 0, 0));
-        assertEquals("setGlobal|precision|now|getGlobal|dim|clearGlobals|clearGlobal|beta|alpha", parser.getFunctionRegex());
+        assertEquals("setGlobal|precision|now|getGlobal|dimN|dim|clearGlobals|clearGlobal|beta|alpha", parser.getFunctionRegex());
     }
 
     @Test
     public void testGetFunctionRegEx_case_sensitive() {
         parser.addFunction(new Function("alpha", this, "_ALPHA", 0, 0));
         parser.addFunction(new Function("beta", this, "_BETA", 0, 0));
-        assertEquals("setGlobal|precision|now|getGlobal|dim|clearGlobals|clearGlobal|beta|alpha", parser.getFunctionRegex());
+        assertEquals("setGlobal|precision|now|getGlobal|dimN|dim|clearGlobals|clearGlobal|beta|alpha", parser.getFunctionRegex());
     }
 
     @Test
@@ -74,12 +96,12 @@ public class FunctionTest extends UnitTestBase {
 
     @Test
     public void testClearFunctions() {
-        assertEquals(7, parser.getFunctions().size());
+        assertEquals(8, parser.getFunctions().size());
         parser.addFunction(new Function("alpha", this, "_ALPHA", 0, 0));
         parser.addFunction(new Function("beta", this, "_BETA", 0, 0));
-        assertEquals(9, parser.getFunctions().size());
+        assertEquals(10, parser.getFunctions().size());
         parser.clearFunctions();
-        assertEquals(7, parser.getFunctions().size());
+        assertEquals(8, parser.getFunctions().size());
     }
 
     @Test
@@ -115,4 +137,124 @@ public class FunctionTest extends UnitTestBase {
         validateExceptionThrown(parser, "ISBLANK('X') ? 'Okay' : DATEFORMAT('yyyyMMdd', null)",
             "The following parameter(s) cannot be null: 2", 1, 25);
     }
+
+    @Test
+    public void testHandlerExceptionsReported() throws Exception {
+        parser.addFunction(new Function("fail", this, "_FAIL", 1, 1));
+        validateExceptionThrown(parser, "fail('parser')", "parser failure", 1, 1);
+        validateExceptionThrown(parser, "fail('bad')", "bad", 1, 1);
+        validateExceptionThrown(parser, "fail(null)", "java.lang.IllegalStateException", 1, 1);
+
+        Value value = parser.eval("fail('bad')");
+        assertTrue(((ParserException)value.asObject()).getCause() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testHandlersModifyingArguments() throws Exception {
+        parser.addFunction(new Function("bump", this, "_BUMP", 1, 1));
+        for (int i = 0; i < 3; i++) {
+            validateNumericResult(parser, "BUMP(1)", "2");
+            validateNumericResult(parser, "A = 1; BUMP(7)", "8");
+            validateNumericResult(parser, "BUMP(BUMP(1))", "3");
+            validateNumericResult(parser, "BUMP(A)", "2");
+            validateNumericResult(parser, "A", "1");
+        }
+
+        CompiledExpression expression = parser.compile("BUMP(-1 + 1)");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(BigDecimal.ONE, expression.eval().asNumber());
+        }
+
+        parser.eval("setGlobal('G', 5); BUMP(5)");
+        validateNumericResult(parser, "getGlobal('G')", "5");
+    }
+
+    @Test
+    public void testHandlersOfOtherKinds() throws Exception {
+        parser.addFunction(new Function("static", this, "_STATIC", 0, 0));
+        validateStringResult(parser, "static()", "static");
+
+        parser.addFunction(new Function("anonymous", new Object() {
+            @SuppressWarnings("unused")
+            public Value _ANONYMOUS(Token function, Stack<Token> stack) {
+                return new Value().setValue("anonymous");
+            }
+        }, "_ANONYMOUS", 0, 0));
+        validateStringResult(parser, "anonymous()", "anonymous");
+    }
+
+    @Test
+    public void testHandlersBoundToTheirInstances() throws Exception {
+        // Both use the handler method of the same adapter class
+        parser.addFunction(Function.number("double", new Function.NumberFunction1() {
+            public BigDecimal apply(BigDecimal a) {
+                return a.add(a);
+            }
+        }));
+        parser.addFunction(Function.number("negate", new Function.NumberFunction1() {
+            public BigDecimal apply(BigDecimal a) {
+                return a.negate();
+            }
+        }));
+        validateNumericResult(parser, "double(3)", "6");
+        validateNumericResult(parser, "negate(3)", "-3");
+
+        parser.addFunction(new Function("static2", this, "_STATIC", 0, 0));
+        parser.addFunction(new Function("static3", this, "_STATIC", 0, 0));
+        validateStringResult(parser, "static2() + static3()", "static2static3");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingHandler() {
+        new Function("missing", this, "_MISSING", 0, 0);
+    }
+
+    @Test
+    public void testTypedFunctions() throws Exception {
+        parser.addFunction(Function.number("half", new Function.NumberFunction1() {
+            public BigDecimal apply(BigDecimal a) {
+                return a == null ? null : a.divide(new BigDecimal(2));
+            }
+        }));
+        parser.addFunction(Function.number("sub", new Function.NumberFunction2() {
+            public BigDecimal apply(BigDecimal a, BigDecimal b) {
+                return a.subtract(b);
+            }
+        }));
+        parser.addFunction(Function.string("initial", new Function.StringFunction1() {
+            public String apply(String a) throws ParserException {
+                if (a.isEmpty()) {
+                    throw new ParserException("empty", 0, 0);
+                }
+                return a.substring(0, 1);
+            }
+        }));
+        parser.addFunction(Function.string("join", new Function.StringFunction2() {
+            public String apply(String a, String b) {
+                return a + "-" + b;
+            }
+        }));
+        parser.addFunction(Function.varargs("count", 0, Integer.MAX_VALUE, new Function.VarargsFunction() {
+            public Value apply(Value... arguments) {
+                return new Value("count").setValue(new BigDecimal(arguments.length));
+            }
+        }));
+        parser.addFunction(Function.varargs("first", 1, 3, new Function.VarargsFunction() {
+            public Value apply(Value... arguments) {
+                return arguments[0];
+            }
+        }));
+
+        validateNumericResult(parser, "half(5) + 1", "3.5");
+        validateNumericResult(parser, "sub(5, 7)", "-2");
+        validateStringResult(parser, "initial('abc') + join('x', 'y')", "ax-y");
+        validateNumericResult(parser, "count() + count(1, 'a', true)", "3");
+        validateStringResult(parser, "first('a', 2)", "a");
+        assertNull(parser.eval("half(null)").asNumber());
+
+        // Arguments are validated like any other function's
+        validateExceptionThrown(parser, "half('x')", "half parameter 1 expected type NUMBER, but was STRING", 1, 5);
+        validateExceptionThrown(parser, "first()", "first expected 1..3 parameter(s), but got 0", 1, 6);
+        validateExceptionThrown(parser, "initial('')", "empty", 0, 0);
+    }
 }
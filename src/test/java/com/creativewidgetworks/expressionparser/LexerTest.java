@@ -0,0 +1,172 @@
+package com.creativewidgetworks.expressionparser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class LexerTest extends UnitTestBase {
+
+    private Parser parser;
+
+    @Before
+    public void beforeEach() {
+        parser = new Parser();
+        FunctionToolbox.register(parser);
+        parser.addConstant("MY_CONSTANT", BigDecimal.ONE);
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    private void assertSameTokens(String input) {
+        parser.invalidatePattern();
+        Lexer lexer = Lexer.create(parser);
+        assertNotNull(lexer);
+
+        for (boolean wantWhitespace : new boolean[] {false, true}) {
+            List<Token> expected = parser.match(input, wantWhitespace);
+            List<Token> actual = lexer.tokenize(input, wantWhitespace);
+            assertEquals(input, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Token e = expected.get(i);
+                Token a = actual.get(i);
+                String msg = input + " token " + i;
+                assertEquals(msg, e.getType(), a.getType());
+                assertEquals(msg, e.getText(), a.getText());
+                assertEquals(msg, e.getRow(), a.getRow());
+                assertEquals(msg, e.getColumn(), a.getColumn());
+                assertEquals(msg, e.getValue().getType(), a.getValue().getType());
+                assertEquals(msg, e.getValue().asObject(), a.getValue().asObject());
+                assertEquals(msg, e.getValue().asNumber(), a.getValue().asNumber());
+                if (a.getOperator() != null) {
+                    assertEquals(msg, Operator.find(e, false), a.getOperator());
+                }
+            }
+        }
+    }
+
+    private static final String[] INPUTS = {
+        "",
+        " ",
+        "1 + 2 * 3",
+        "A = 123; B = 456; A + B",
+        "(1+4)/3",
+        "upper('AbC' + 'def')",
+        "notice AND andy OR order MOD modern DIV divide",
+        "LENGTH(S) + LEFTOF(S, 'x') + LEFT(S, 1)",
+        "PI * 2 + PIPE + NULL + nullable + MY_CONSTANT",
+        "1.5e10 + 1e5x + 2E-3 + .5 + 5. + 1.2.3 + x1 + _a1 + .5e3",
+        "'it\\'s' + \"say \\\"hi\\\"\" + 'tab\\there' + '\\u0041\\101'",
+        "'unterminated + \"also",
+        "'escape at end\\",
+        "'line\nbreak' + 'bad\\\nescape'",
+        "@name + @@name + @@@name + @@@@name + @a.b->c/d:e + @99test + @",
+        "${java.version} + ${a} + ${b}\n${c",
+        "/* comment */ 1 /* unterminated",
+        "/**/ /*/ /* ** */ // not a comment",
+        "a\nb\n\nc ; d\r\ne",
+        "1 << 2 >> 3 <= 4 >= 5 == 6 != 7 < 8 > 9",
+        "!!1 + !2 + -3 + +4 + 5% + 2 ^ 3",
+        "A > 1 ? 'Y' : 'N'",
+        "V[1,2] = DIM(V, 2, 2)",
+        "# $ & ~ ` \\ { } | éè K ſ x́",
+        "é1 + a² + 1é",
+        "@ab\u212a + @\u212a + @\u017fx",
+        "\t1\t+\t2  ",
+        "1e5 + 1E+2 + 12.50 + 0.0e-3 + dİv + NoT",
+    };
+
+    /*---------------------------------------------------------------------------------*/
+
+    @Test
+    public void testSameTokensAsPattern() {
+        for (String input : INPUTS) {
+            assertSameTokens(input);
+        }
+    }
+
+    @Test
+    public void testSameTokensAsPatternCaseSensitive() {
+        parser.setCaseSensitive(true);
+        for (String input : INPUTS) {
+            assertSameTokens(input);
+        }
+        assertSameTokens("And and AND Not not Pi pi upper UPPER Upper");
+    }
+
+    @Test
+    public void testSameTokensAsPatternRandomInput() {
+        String alphabet = "aAeEnNdDoOrRmMxX_019.@$\\{}/*'\"+-<>=!?:;,()[] \t\n\r%^Ké";
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(24);
+            for (int j = 0; j < length; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            assertSameTokens(sb.toString());
+        }
+    }
+
+    @Test
+    public void testSameTokensAsPatternManyNames() {
+        // Names that are prefixes of one another or differ only in case
+        String[] names = {"ab", "AB", "aB", "abc", "ABCD", "abcde", "Ab_1", "x", "X1", "ſt", "\u212aey"};
+        for (String name : names) {
+            parser.addFunction(new Function(name, new TestFunctions(), "_NOW", 0, 0));
+        }
+        for (int i = 0; i < 400; i++) {
+            parser.addFunction(new Function("FN" + i, new TestFunctions(), "_NOW", 0, 0));
+            parser.addConstant("C" + (i * 7), BigDecimal.ONE);
+        }
+
+        String input = "ab AB aB abc abcd ABCDE abcdef Ab_1x ab_ x1 X10 st ſt ST \u212aey key KEY FN1 FN39 FN399 fn4000 C7 c70 C2793";
+        assertSameTokens(input);
+        parser.setCaseSensitive(true);
+        assertSameTokens(input);
+    }
+
+    @Test
+    public void testPatternUsedForRegexNames() throws Exception {
+        parser.addConstant("RE.X", BigDecimal.TEN);
+        assertNull(Lexer.create(parser));
+
+        // Matched as a regular expression, as before
+        List<Token> tokens = parser.tokenize("REAX", false);
+        assertEquals(1, tokens.size());
+        assertEquals(TokenType.CONSTANT, tokens.get(0).getType());
+    }
+
+    @Test
+    public void testSplit() {
+        assertEquals(Arrays.asList("1 + 2"), Lexer.split("1 + 2", ";"));
+        assertEquals(Arrays.asList(), Lexer.split("", ";"));
+        assertEquals(Arrays.asList(), Lexer.split(" ;\n; ", ";"));
+        assertEquals(Arrays.asList("A=3", "B=7", "A*B"), Lexer.split("A=3;B=7;A*B;", ";"));
+        assertEquals(Arrays.asList("A='Test;'", "B=' me'", "A+B"), Lexer.split("A='Test;';B=' me';A+B", ";"));
+
+        // Strings of either quote, with escapes, and comments
+        assertEquals(Arrays.asList("\"x;y'z\"", " 'it\\'s;'"), Lexer.split("\"x;y'z\"; 'it\\'s;'", ";"));
+        assertEquals(Arrays.asList("/* a; b */ 1", " 2 /* ; */"), Lexer.split("/* a; b */ 1; 2 /* ; */", ";"));
+
+        // Unterminated strings and comments do not hide delimiters
+        assertEquals(Arrays.asList("'abc", " d"), Lexer.split("'abc; d", ";"));
+        assertEquals(Arrays.asList("'a\nb'", " c"), Lexer.split("'a\nb'; c", ";"));
+        assertEquals(Arrays.asList("/* a", " /* b", " c"), Lexer.split("/* a; /* b; c", ";"));
+    }
+
+    @Test
+    public void testSplitScript() throws Exception {
+        validateStringResult(parser, "A = \"x;y'z\"; /* B = 1; */ A + '!'", "x;y'z!");
+    }
+
+    @Test
+    public void testInvalidTokensReported() {
+        validateExceptionThrown(parser, "1 + # 2", "Syntax error, bad token", 1, 5);
+        validateExceptionThrown(parser, "1 +\n2 &", "Syntax error, bad token", 2, 3);
+    }
+
+}
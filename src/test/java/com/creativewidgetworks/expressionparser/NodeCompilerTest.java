@@ -0,0 +1,345 @@
+package com.creativewidgetworks.expressionparser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Stack;
+
+public class NodeCompilerTest extends UnitTestBase {
+
+    private Parser parser;
+    private int calls;
+
+    @Before
+    public void beforeEach() {
+        parser = new Parser();
+        FunctionToolbox.register(parser);
+        parser.addFunction(new Function("COUNTED", this, "_COUNTED", 1, 1));
+        parser.addFunction(new Function("MISDECLARED", this, "_COUNTED", 1, 1).setResultType(ValueType.NUMBER));
+        parser.addFunction(new Function("FLAG", this, "_COUNTED", 1, 1, ValueType.BOOLEAN));
+        parser.addFunction(new Function("MEMO", this, "_COUNTED", 1, 1).setDeterministic(true));
+        calls = 0;
+    }
+
+    public Value _COUNTED(Token function, Stack<Token> stack) {
+        calls++;
+        return new Value(stack.pop().getValue());
+    }
+
+    public Value _DATED(Token function, Stack<Token> stack) {
+        calls++;
+        return new Value().setValue(new Date(stack.pop().asNumber().longValue()));
+    }
+
+    public Value _DOUBLED(Token function, Stack<Token> stack) {
+        return new Value().setValue(stack.pop().asNumber().multiply(new BigDecimal(2)));
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    private Node compile(String expression) throws Exception {
+        return new NodeCompiler(parser).compile(parser.infixToRPN(parser.tokenize(expression, false)));
+    }
+
+    private int[] checks(String expression) throws Exception {
+        return ((Node.Call)compile(expression)).getChecks();
+    }
+
+    private EvaluationContext newContext() {
+        EvaluationContext context = new EvaluationContext(parser);
+        context.addVariable("A", new Value().setValue(new BigDecimal("5")));
+        context.addVariable("S", new Value().setValue("text"));
+        return context;
+    }
+
+    private Value evalRPN(CompiledExpression expression, EvaluationContext context) {
+        Value value = null;
+        try {
+            for (Statement statement : expression.getStatements()) {
+                value = parser.RPNtoValue(statement.getTokens(), context);
+            }
+        } catch (ParserException ex) {
+            value = new Value().setValue(ex);
+        }
+        return value;
+    }
+
+    private void assertSameResult(String expression) throws Exception {
+        CompiledExpression compiled = parser.compile(expression);
+        Value expected = evalRPN(compiled, newContext());
+
+        // Evaluate more than once so that specialized nodes are exercised too
+        EvaluationContext context = newContext();
+        for (int i = 0; i < 2; i++) {
+            Value actual = compiled.eval(context);
+            assertEquals(expression, expected.getType(), actual.getType());
+            if (expected.asObject() instanceof ParserException) {
+                ParserException ex1 = (ParserException)expected.asObject();
+                ParserException ex2 = (ParserException)actual.asObject();
+                assertEquals(expression, ex1.getMessage(), ex2.getMessage());
+                assertEquals(expression, ex1.getErrorRow(), ex2.getErrorRow());
+                assertEquals(expression, ex1.getErrorColumn(), ex2.getErrorColumn());
+            } else {
+                assertEquals(expression, expected.asString(), actual.asString());
+                assertEquals(expression, expected.asObject(), actual.asObject());
+                assertEquals(expression, expected.getName(), actual.getName());
+            }
+        }
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    @Test
+    public void testCompilesWellFormedStatements() throws Exception {
+        assertTrue(compile("A + 2 * 3") instanceof Node.Binary);
+        assertTrue(compile("-A") instanceof Node.Negation);
+        assertTrue(compile("+A") instanceof Node.Identifier);
+        assertTrue(compile("A%") instanceof Node.Percent);
+        assertTrue(compile("A > 1 ? 'Y' : 'N'") instanceof Node.Ternary);
+        assertTrue(compile("MAX(1, 2, A)") instanceof Node.Call);
+        assertTrue(compile("V[1,2]") instanceof Node.ArrayIndex);
+        assertTrue(compile("A = 3") instanceof Node.Assignment);
+        assertTrue(compile("'abc'") instanceof Node.Literal);
+    }
+
+    @Test
+    public void testMalformedStatementsNotCompiled() throws Exception {
+        assertNull(compile("1 + 3 4"));
+        assertNull(compile("1 == 1 ? 2"));
+        assertNull(compile("1 == 1 : 2"));
+        assertNull(compile("A = B = 1"));
+        assertNull(compile("[1]"));
+    }
+
+    @Test
+    public void testDynamicArrayIndexNotCompiled() throws Exception {
+        // Whether A + 1 is an index depends on the type of A at run time
+        assertNull(compile("V[A + 1]"));
+        assertNotNull(compile("V[A - 1]"));
+    }
+
+    @Test
+    public void testResultsMatchRPNEvaluation() throws Exception {
+        String[] expressions = {
+            "(1 - 2) * (3 / 4) - (5 + 6)",
+            "2 ^ 10 % 3",
+            "7 DIV 2 + 7 MOD 2",
+            "1 / 0",
+            "A + S",
+            "S * 2",
+            "NOT (A > 4 AND S == 'text')",
+            "A AND true",
+            "-S",
+            "A < 3 ? 'small' : A < 10 ? 'medium' : 'large'",
+            "(A == 5 ? true : false) ? UPPER(S) : DATEFORMAT('yyyyMMdd', null)",
+            "A ? 1 : 2",
+            "MAX(1, A, 3) + LEN(S)",
+            "LEN(S, 2)",
+            "NOSUCH = 1",
+            "1 = 2",
+            "A = UNDEFINED",
+            "A[1]",
+            "1 + 3 4",
+            "1 == 1 ? 2",
+            "1000 * 1 + 0.10 * 10",
+            "1 / 3 + 2 ^ -1",
+            "0 / 4.00",
+            "-7 MOD 3 + 10 DIV 3",
+            "'a' < 'b' AND S >= 'text'",
+            "'a' + 'b' == 'ab'",
+            "true == false OR true != false",
+            "A <= 5.0 AND A > 4.99",
+            "S < 5",
+            "(1 == 1) < (1 == 2)",
+            "A > 1 OR S",
+            "A < 1 AND S",
+            "S AND A > 1",
+            "(A < 1 AND A > 2) + 1",
+            "(A > 1 OR UPPER(S) == 'X') * 2",
+            "(A > 1 OR (A > 2 ? A > 3 : A > 4)) * 2",
+            "A * 2 + 1 > 10 == (LEN(S) <= 4)",
+            "(A - 1) / 0",
+            "(A + 0) ^ 2 DIV 3 MOD 4",
+            "UPPER(S) + 'x' == 'TEXTx' AND LOWER(S) != 'x'",
+            "LEFT(S, 2) < RIGHT(S, 2)",
+            "DATEADD(MAKEDATE(2020, 1, 1), A) >= MAKEDATE(2020, 1, 6)",
+            "MISDECLARED(S) + 1",
+            "MISDECLARED(S) < 2",
+        };
+
+        for (String expression : expressions) {
+            assertSameResult(expression);
+        }
+    }
+
+    @Test
+    public void testBinaryNodeSpecializes() throws Exception {
+        CompiledExpression expression = parser.compile("X + Y");
+        Node.Binary node = (Node.Binary)expression.getStatements().get(0).getRoot();
+
+        EvaluationContext context = new EvaluationContext(parser);
+        context.addVariable("X", new Value().setValue(new BigDecimal("1.5")));
+        context.addVariable("Y", new Value().setValue(new BigDecimal("2")));
+        assertEquals(new BigDecimal("3.5"), expression.eval(context).asNumber());
+        int specialized = node.getState();
+
+        // Strings arrive: the node reverts to the generic path and still concatenates
+        context.getVariable("X").setValue("x");
+        assertEquals("x2", expression.eval(context).asString());
+        assertTrue(node.getState() != specialized);
+
+        context.getVariable("X").setValue(BigDecimal.ONE);
+        assertEquals(new BigDecimal("3"), expression.eval(context).asNumber());
+    }
+
+    @Test
+    public void testArrays() throws Exception {
+        CompiledExpression expression = parser.compile("DIM(V, 2, 2); V[1,1] = 'x'; V[0] = V[1,1] + 'y'; V[0] + V[1,0]");
+        assertNotNull(expression.getStatements().get(1).getRoot());
+        assertEquals("xy", expression.eval().asString());
+
+        assertSameResult("DIM(V, 2); V[3]");
+        assertSameResult("DIM(V, 2); V[1,1]");
+    }
+
+    @Test
+    public void testLogicalOperatorsShortCircuit() throws Exception {
+        assertFalse(parser.compile("A > 5 AND COUNTED(A > 1)").eval(newContext()).asBoolean());
+        assertTrue(parser.compile("A == 5 OR COUNTED(A > 1)").eval(newContext()).asBoolean());
+        assertEquals(0, calls);
+
+        assertTrue(parser.compile("A == 5 AND COUNTED(A > 1)").eval(newContext()).asBoolean());
+        assertFalse(parser.compile("A > 5 OR COUNTED(A < 1)").eval(newContext()).asBoolean());
+        assertEquals(2, calls);
+
+        // The operand not evaluated cannot fail the expression
+        assertFalse(parser.compile("A > 5 AND 1 / 0 > 1").eval(newContext()).asBoolean());
+
+        // Only a BOOLEAN left operand short circuits
+        Value value = parser.compile("S AND COUNTED(A > 1)").eval(newContext());
+        assertTrue(value.asObject() instanceof ParserException);
+        assertEquals(3, calls);
+    }
+
+    @Test
+    public void testTernaryEvaluatesSelectedBranchOnly() throws Exception {
+        assertEquals("Y", parser.compile("A == 5 ? 'Y' : COUNTED('N')").eval(newContext()).asString());
+        assertEquals("N", parser.compile("A != 5 ? COUNTED('Y') : 'N'").eval(newContext()).asString());
+        assertEquals(0, calls);
+
+        assertEquals("ok", parser.compile("A == 5 ? 'ok' : 1 / 0").eval(newContext()).asString());
+        assertEquals("ok", parser.compile("A == 5 ? 'ok' : DIM(V, -1)").eval(newContext()).asString());
+
+        Value value = parser.compile("A == 5 ? 1 / 0 : 'ok'").eval(newContext());
+        assertEquals("/ by zero", ((ParserException)value.asObject()).getMessage());
+    }
+
+    @Test
+    public void testTypedOperations() throws Exception {
+        assertEquals(TypedOperation.NUMBER_ADD, ((Node.Typed)compile("A * 2 + 1")).getOperation());
+        assertEquals(TypedOperation.NUMBER_GT, ((Node.Typed)compile("LEN(S) > 3")).getOperation());
+        assertEquals(TypedOperation.STRING_EQ, ((Node.Typed)compile("UPPER(S) == 'X'")).getOperation());
+        assertEquals(TypedOperation.STRING_CONCAT, ((Node.Typed)compile("TRIM(S) + 'x'")).getOperation());
+        assertEquals(TypedOperation.BOOLEAN_NEQ, ((Node.Typed)compile("(A > 1) != ISNULL(S)")).getOperation());
+
+        // Operand types not known until run time
+        assertTrue(compile("A + 1") instanceof Node.Binary);
+        assertTrue(compile("COUNTED(A) > 1") instanceof Node.Binary);
+
+        // Operands of another type than declared still get the general operation
+        assertEquals("text1", parser.compile("MISDECLARED(S) + 1").eval(newContext()).asString());
+    }
+
+    @Test
+    public void testVariablesResolvedThroughFrame() throws Exception {
+        NodeCompiler compiler = new NodeCompiler(parser);
+        compiler.compile(parser.infixToRPN(parser.tokenize("A + B * A", false)));
+        assertEquals(2, compiler.getVariableCount());
+        assertEquals(1, ((Node.Identifier)compiler.compile(parser.infixToRPN(parser.tokenize("B", false)))).getSlot());
+
+        // Names that differ only by case hold the same variable
+        assertEquals(new BigDecimal("4"), parser.compile("x = 2; X + x").eval(newContext()).asNumber());
+
+        // Replacing or removing a variable part way through an evaluation is seen by later statements
+        assertEquals(new BigDecimal("3"), parser.compile("V = 1; DIM(V, 3); ARRAYLEN(V)").eval(newContext()).asNumber());
+        assertEquals(new BigDecimal("5"), parser.compile("A = A + 1; DIM(B, 2); B[1] = A - 1; B[1]").eval(newContext()).asNumber());
+
+        // Variables created by an evaluation persist in the context
+        EvaluationContext context = newContext();
+        CompiledExpression expression = parser.compile("N = A * 2; N + 1");
+        assertEquals(new BigDecimal("11"), expression.eval(context).asNumber());
+        context.addVariable("A", new Value().setValue(new BigDecimal("1")));
+        assertEquals(new BigDecimal("3"), expression.eval(context).asNumber());
+        assertEquals(new BigDecimal("2"), context.getVariable("N").asNumber());
+
+        context.clearVariables();
+        assertSameResult("Z = UNDEFINED + 1; Z");
+    }
+
+    @Test
+    public void testCallsBoundAtCompileTime() throws Exception {
+        assertEquals(0, checks("FLAG(A > 1)").length);
+        assertEquals(0, checks("COUNTED(S)").length);
+
+        // Only arguments whose types are not certain are checked when the function is called
+        assertArrayEquals(new int[] {0}, checks("FLAG(A)"));
+        assertArrayEquals(new int[] {0}, checks("FLAG(MISDECLARED(A))"));
+        assertArrayEquals(new int[] {0}, checks("LEFT(S, 2)"));
+        assertArrayEquals(new int[] {1}, checks("LEFT('abc', A)"));
+
+        // Calls that would fail are validated in full
+        assertNull(checks("FLAG('x')"));
+        assertNull(checks("LEFT(S, A > 1)"));
+        assertNull(checks("COUNTED(S, 1)"));
+
+        assertSameResult("FLAG(A)");
+        assertSameResult("FLAG('x')");
+        assertSameResult("COUNTED(S, 1)");
+        assertSameResult("FLAG(A > 1) AND FLAG(S == 'text')");
+        assertSameResult("LEFT(S, A)");
+        assertSameResult("LEFT(A, S)");
+        assertSameResult("LEFT(S, A > 1)");
+        assertSameResult("A > 1 ? 'ok' : LEFT(S, A > 1)");
+
+        // A function replaced after compiling is the one called
+        CompiledExpression expression = parser.compile("COUNTED(A) + 1");
+        assertEquals(new BigDecimal("6"), expression.eval(newContext()).asNumber());
+        parser.addFunction(new Function("COUNTED", this, "_DOUBLED", 1, 1));
+        assertEquals(new BigDecimal("11"), expression.eval(newContext()).asNumber());
+    }
+
+    @Test
+    public void testDeterministicCallsRememberLastResult() throws Exception {
+        CompiledExpression expression = parser.compile("MEMO(S + A) + MEMO(A)");
+        EvaluationContext context = newContext();
+        assertEquals("text55", expression.eval(context).asString());
+        assertEquals("text55", expression.eval(context).asString());
+        assertEquals(2, calls);
+
+        context.getVariable("A").setValue(new BigDecimal("5.0"));
+        assertEquals("text5.05.0", expression.eval(context).asString());
+        assertEquals(4, calls);
+
+        // A change of settings is not hidden by a remembered result
+        parser.setPrecision(2);
+        assertEquals("text5.05.0", expression.eval(context).asString());
+        assertEquals(6, calls);
+
+        // Arrays could be modified by the function or later on, so they are not remembered
+        expression = parser.compile("DIM(V, 1); MEMO(V)");
+        context = newContext();
+        expression.eval(context);
+        expression.eval(context);
+        assertEquals(8, calls);
+
+        // Nor are dates, which can be modified too
+        parser.addFunction(new Function("DATED", this, "_DATED", 1, 1).setDeterministic(true));
+        expression = parser.compile("DATED(A)");
+        expression.eval(context).asDate().setTime(0);
+        assertEquals(new Date(5), expression.eval(context).asDate());
+        assertEquals(10, calls);
+    }
+
+}
@@ -82,9 +82,9 @@ public class ParserCoreTest extends UnitTestBase implements FieldInterface {
 
     @Test
     public void testClearFunctions() {
-        assertEquals("basic constants present", 7, parser.getFunctions().size());
+        assertEquals("basic constants present", 8, parser.getFunctions().size());
         parser.clearFunctions();;
-        assertEquals("functions removed and defaults inserted", 7, parser.getFunctions().size());
+        assertEquals("functions removed and defaults inserted", 8, parser.getFunctions().size());
 
         // Really remove all and verify regex is not available
         parser.getFunctions().clear();
@@ -96,9 +96,9 @@ public class ParserCoreTest extends UnitTestBase implements FieldInterface {
 
     @Test
     public void testClearFunction() {
-        assertEquals("basic constants present", 7, parser.getFunctions().size());
+        assertEquals("basic constants present", 8, parser.getFunctions().size());
         parser.clearFunction("NOW");;
-        assertEquals("functions removed and defaults inserted", 6, parser.getFunctions().size());
+        assertEquals("functions removed and defaults inserted", 7, parser.getFunctions().size());
     }
 
     /*----------------------------------------------------------------------------*/
@@ -161,6 +161,83 @@ public class ParserCoreTest extends UnitTestBase implements FieldInterface {
         assertTrue(value.getArray().get(1).getArray().get(1) instanceof Value);
     }
 
+    @Test
+    public void testDimN() throws Exception {
+        FunctionToolbox.register(parser);
+
+        validateExceptionThrown(parser, "DIMN('A', 1)", "Expected IDENTIFIER, but got STRING", 1, 6);
+        validateExceptionThrown(parser, "DIMN(A, 0)", "DIMN parameter numRows expected value to be in the range of 1..16777216, but was 0", 1, 9);
+        validateExceptionThrown(parser, "DIMN(A, 100000, 1000)", "DIMN parameter numCols expected value to be in the range of 1..167, but was 1000", 1, 17);
+
+        // Beyond the size DIM allows
+        Value value = parser.eval("DIMN(V, 1000000)");
+        assertEquals(Boolean.TRUE, value.asBoolean());
+        validateNumericResult(parser, "ARRAYLEN(V)", "1000000");
+        validateNumericResult(parser, "V[999999]", "0");
+
+        parser.eval("V[3] = 1.50; V[4] = V[3] * 3 + 0.1; V[5] = 1 / 3");
+        validateNumericResult(parser, "V[3]", "1.5");
+        validateNumericResult(parser, "V[4]", "4.6");
+        validateNumericResult(parser, "V[5]", "0.33333");
+        validateNumericResult(parser, "V[]", "0");
+        validateExceptionThrown(parser, "V[1000000]", "Index value of 1000000 is out of the range of 0..999999", 1, 3);
+        validateExceptionThrown(parser, "V[1] = 'x'", "Expected NUMBER value, but was STRING", 1, 8);
+        validateExceptionThrown(parser, "V[1,1]", "Expected ARRAY type, but was NUMBER", 1, 1);
+
+        parser.eval("DIMN(M, 3, 2); M[1,1] = 7; M[2] = M[1]; M[0,0] = -2");
+        validateNumericResult(parser, "M[2,1]", "7");
+        validateNumericResult(parser, "M[0,0] + M[1,1]", "5");
+        validateNumericResult(parser, "ARRAYLEN(M[1])", "2");
+        validateExceptionThrown(parser, "M[1,2]", "Index value of 2 is out of the range of 0..1", 1, 5);
+
+        // Copies are independent, and converted to Values when their elements are asked for
+        value = parser.eval("N = M; N[0,0] = 1; M");
+        assertEquals(3, value.getArray().size());
+        assertEquals(new BigDecimal(-2), value.getArray().get(0).getArray().get(0).asNumber());
+        validateNumericResult(parser, "N[0,0]", "1");
+
+        // Only the variable holds the array
+        validateExceptionThrown(parser, "Y = DIMN(Z, 3); Y[]", "Expected ARRAY type, but was BOOLEAN", 1, 2);
+        validateExceptionThrown(parser, "Y = DIMN(Z, 3); Y[0]", "Expected ARRAY type, but was BOOLEAN", 1, 2);
+    }
+
+    @Test
+    public void testArrayAccess_no_elements() throws Exception {
+        Value value = new Value();
+        value.setType(ValueType.ARRAY);
+        parser.addVariable("H", value);
+        assertEquals(ValueType.ARRAY, parser.eval("H[]").getType());
+        validateExceptionThrown(parser, "H[0]", "Index value of 0 is out of the range of 0..-1", 1, 3);
+        validateExceptionThrown(parser, "H[0,0]", "Index value of 0 is out of the range of 0..-1", 1, 3);
+        validateStringResult(parser, "1 > 2 ? H[0] : 'none'", "none");
+    }
+
+    @Test
+    public void testDimN_offHeap() throws Exception {
+        assertEquals(0, parser.setOffHeapArrayElements(100));
+        assertEquals(100, parser.getOffHeapArrayElements());
+
+        parser.eval("DIMN(S, 99); DIMN(V, 10, 10); V[9,9] = 2.5; V[0] = V[9]");
+        assertFalse(parser.getVariable("S").peekNumbers().isOffHeap());
+        Value value = parser.getVariable("V");
+        assertTrue(value.peekNumbers().isOffHeap());
+        validateNumericResult(parser, "V[0,9] + V[9,9]", "5");
+
+        // Copies are held off-heap too, and keep their numbers when the variable is cleared
+        parser.eval("W = V; W[1,1] = 1");
+        assertTrue(parser.getVariable("W").peekNumbers().isOffHeap());
+        parser.eval("C = V");
+        parser.clearVariable("V");
+        assertNull(parser.getVariable("V"));
+        validateNumericResult(parser, "C[9,9] + W[1,1]", "3.5");
+
+        // Cleared variables release numbers no copy shares
+        value = parser.getVariable("W");
+        parser.clearVariables();
+        assertNull(value.peekNumbers());
+        assertEquals(100, parser.setOffHeapArrayElements(0));
+    }
+
     /*----------------------------------------------------------------------------*/
 
     @Test
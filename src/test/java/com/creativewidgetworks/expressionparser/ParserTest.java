@@ -5,9 +5,12 @@ import org.junit.Test;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -253,6 +256,22 @@ public class ParserTest extends UnitTestBase {
         }
     }
 
+    @Test
+    public void testAddFunctionsAndConstants() throws Exception {
+        TestFunctions functions = new TestFunctions();
+        parser.addFunctions(Arrays.asList(
+                new Function("first", functions, "_ABS", 1, 1),
+                new Function("second", functions, "_SQRT", 1, 1)));
+
+        Map<String, BigDecimal> constants = new HashMap<>();
+        constants.put("ten", BigDecimal.TEN);
+        constants.put("two", new BigDecimal(2));
+        parser.addConstants(constants);
+
+        validateNumericResult(parser, "FIRST(-TEN) + SECOND(4) * two", "14");
+        assertEquals(BigDecimal.TEN, parser.getConstant("TEN"));
+    }
+
     /*----------------------------------------------------------------------------*/
 
     @Test
@@ -357,6 +376,19 @@ public class ParserTest extends UnitTestBase {
         validateStringResult(parser, "V1[0]", "omega");
     }
 
+    @Test
+    public void testArrayAccess_copies_independent() throws Exception {
+        FunctionToolbox.register(parser);
+        parser.eval("V1=SPLIT('alpha,beta,gamma'); V2=V1; V2[1]='delta'");
+        validateStringResult(parser, "V1[1]", "beta");
+        validateStringResult(parser, "V2[1]", "delta");
+
+        Value copy = parser.eval("V1");
+        parser.eval("V1[2]='omega'");
+        assertEquals("gamma", copy.getArray().get(2).asString());
+        validateStringResult(parser, "V1[2]", "omega");
+    }
+
     /*----------------------------------------------------------------------------*/
 
     @Test
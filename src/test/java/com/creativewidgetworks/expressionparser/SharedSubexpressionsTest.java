@@ -0,0 +1,167 @@
+package com.creativewidgetworks.expressionparser;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Stack;
+
+public class SharedSubexpressionsTest extends UnitTestBase {
+
+    private Parser parser;
+    private int calls;
+    private BigDecimal field;
+
+    @Before
+    public void beforeEach() {
+        parser = new Parser();
+        FunctionToolbox.register(parser);
+
+        calls = 0;
+        field = new BigDecimal("10");
+
+        parser.addFunction(new Function("TWICE", this, "_TWICE", 1, 1, ValueType.NUMBER).setDeterministic(true));
+        parser.addFunction(new Function("BUMP", this, "_BUMP", 0, 0));
+        parser.setFieldInterface(new FieldInterface() {
+            public Value getField(String name, boolean caseSensitive) {
+                return "n".equalsIgnoreCase(name) ? new Value(name, field) : new Value(name, "Text");
+            }
+        });
+    }
+
+    public Value _TWICE(Token function, Stack<Token> stack) {
+        calls++;
+        return new Value(function.getText()).setValue(stack.pop().asNumber().multiply(new BigDecimal(2)));
+    }
+
+    public Value _BUMP(Token function, Stack<Token> stack) {
+        field = field.add(BigDecimal.ONE);
+        return new Value(function.getText()).setValue(field);
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    private void assertSameAsRPN(String source) throws Exception {
+        CompiledExpression compiled = parser.compile(source);
+        assertTrue(source, compiled.getSharedCount() > 0);
+
+        Value expected = null;
+        try {
+            EvaluationContext context = new EvaluationContext(parser);
+            for (Statement statement : compiled.getStatements()) {
+                expected = parser.RPNtoValue(statement.getTokens(), context);
+            }
+        } catch (ParserException ex) {
+            expected = new Value().setValue(ex);
+        }
+
+        Value actual = compiled.eval(new EvaluationContext(parser));
+        assertEquals(source, expected.getType(), actual.getType());
+        if (expected.asObject() instanceof ParserException) {
+            ParserException ex1 = (ParserException)expected.asObject();
+            ParserException ex2 = (ParserException)actual.asObject();
+            assertEquals(source, ex1.getMessage(), ex2.getMessage());
+            assertEquals(source, ex1.getErrorRow(), ex2.getErrorRow());
+            assertEquals(source, ex1.getErrorColumn(), ex2.getErrorColumn());
+        } else {
+            assertEquals(source, expected.asString(), actual.asString());
+        }
+    }
+
+    /*---------------------------------------------------------------------------------*/
+
+    @Test
+    public void testRepeatedSubexpressionEvaluatedOnce() throws Exception {
+        CompiledExpression expression = parser.compile("A = TWICE(@n); B = TWICE(@n) + 1; TWICE(@n) * 2 + B");
+        // TWICE(@n) and @n itself
+        assertEquals(2, expression.getSharedCount());
+
+        assertEquals(new BigDecimal("61"), expression.eval().asNumber());
+        assertEquals(1, calls);
+
+        // Stored results only last for one evaluation
+        field = new BigDecimal("1");
+        assertEquals(new BigDecimal("7"), expression.eval().asNumber());
+        assertEquals(2, calls);
+    }
+
+    @Test
+    public void testNothingSharedWithoutRepeats() throws Exception {
+        assertEquals(0, parser.compile("A = TWICE(@n); B = TWICE(A)").getSharedCount());
+        assertEquals(0, parser.compile("A = RANDOM(); B = RANDOM()").getSharedCount());
+        assertEquals(0, parser.compile("A = 1 + 2; B = 1 + 2").getSharedCount());
+    }
+
+    @Test
+    public void testAssignmentInvalidatesReaders() throws Exception {
+        CompiledExpression expression = parser.compile("X = 1; A = TWICE(X) + TWICE(@n); X = 2; TWICE(X) + TWICE(@n)");
+        assertEquals(new BigDecimal("24"), expression.eval().asNumber());
+        assertEquals(3, calls);
+
+        expression = parser.compile("DIM(V, 2); V[0] = 1; A = TWICE(V[0] + 0); V[0] = 5; TWICE(V[0] + 0)");
+        assertEquals(new BigDecimal("10"), expression.eval().asNumber());
+
+        // The statements share one frame, which a DIM replacing the variable must not leave stale
+        expression = parser.compile("V = TWICE(@n); W = TWICE(@n) + V; DIM(V, 3); ARRAYLEN(V) + W");
+        assertEquals(new BigDecimal("43"), expression.eval().asNumber());
+    }
+
+    @Test
+    public void testSideEffectsInvalidateEverything() throws Exception {
+        CompiledExpression expression = parser.compile("A = TWICE(@n); BUMP(); TWICE(@n)");
+        assertEquals(new BigDecimal("22"), expression.eval().asNumber());
+        assertEquals(2, calls);
+
+        // Pure functions change nothing, even if their results vary
+        expression = parser.compile("A = TWICE(@n); B = NOW(); C = RANDOM(); TWICE(@n)");
+        assertEquals(new BigDecimal("22"), expression.eval().asNumber());
+        assertEquals(3, calls);
+
+        // The precision changes after @n / 3 is first evaluated
+        assertEquals(new BigDecimal("3.67"), parser.compile("A = @n / 3; PRECISION(2); @n / 3").eval().asNumber());
+    }
+
+    @Test
+    public void testSuppressedErrorsAreNotShared() throws Exception {
+        Value value = parser.compile("1 > 0 ? 1 : SQRT(@n - 20); SQRT(@n - 20)").eval();
+        assertTrue(value.asObject() instanceof ParserException);
+    }
+
+    @Test
+    public void testResultsMatchRPNEvaluation() throws Exception {
+        String[] sources = {
+            "A = UPPER(TRIM(@s)); B = LOWER(UPPER(TRIM(@s))); A + B",
+            "A = @n + 1; (@n + 1) * 'x'",
+            "A = @n > 1; (@n > 1) * 2",
+            "A = -@n; B = -@n; A + B + (-@n)",
+            "A = @n%; B = @n%; A + B",
+            "A = 'x' + @s; B = ('x' + @s) == 'xText'; B AND ('x' + @s)",
+            "A = TWICE(@s); TWICE(@s)",
+        };
+
+        for (String source : sources) {
+            assertSameAsRPN(source);
+        }
+    }
+
+    @Test
+    public void testEvalSharesOnceScriptCompiled() throws Exception {
+        String source = "A = TWICE(@n); B = TWICE(@n); A + B";
+        assertEquals(new BigDecimal("40"), parser.eval(source).asNumber());
+        assertEquals(2, calls);
+        assertNotNull(parser.compiledScripts.get(source));
+
+        assertEquals(new BigDecimal("40"), parser.eval(source).asNumber());
+        assertEquals(3, calls);
+
+        // A change of settings recompiles the script
+        parser.setPrecision(2);
+        assertEquals(new BigDecimal("40"), parser.eval(source).asNumber());
+        assertEquals(5, calls);
+        assertTrue(parser.compiledScripts.get(source).isCurrent());
+
+        parser.clearCache();
+        assertTrue(parser.compiledScripts.isEmpty());
+    }
+
+}
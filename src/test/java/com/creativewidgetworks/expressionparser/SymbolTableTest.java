@@ -0,0 +1,43 @@
+package com.creativewidgetworks.expressionparser;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+public class SymbolTableTest extends UnitTestBase {
+
+    @Test
+    public void testFold() {
+        SymbolTable symbols = new SymbolTable();
+        String symbol = symbols.fold("total");
+        assertEquals("TOTAL", symbol);
+        assertSame(symbol, symbols.fold("Total"));
+        assertSame(symbol, symbols.fold("TOTAL"));
+        assertSame(symbol, symbols.fold(new String("total")));
+    }
+
+    @Test
+    public void testFoldBounded() {
+        SymbolTable symbols = new SymbolTable();
+        for (int i = 0; i < 100000; i++) {
+            assertEquals("V" + i, symbols.fold("v" + i));
+        }
+        assertTrue(symbols.size() <= 1 << 16);
+    }
+
+    @Test
+    public void testParserNames() throws Exception {
+        Parser parser = new Parser();
+        parser.addVariable("Total", new Value().setValue(BigDecimal.TEN));
+        validateNumericResult(parser, "total + TOTAL", "20");
+        assertTrue(parser.getVariables().containsKey("TOTAL"));
+
+        // Compiled with the names folded, evaluated after the parser became case sensitive
+        CompiledExpression expression = parser.compile("total = 1");
+        parser.setCaseSensitive(true);
+        expression.eval(parser.getContext());
+        assertEquals(new BigDecimal(1), parser.getVariables().get("total").asNumber());
+        assertEquals(BigDecimal.TEN, parser.getVariables().get("TOTAL").asNumber());
+    }
+
+}
@@ -65,6 +65,63 @@ public class TokenTest extends UnitTestBase {
         assertFalse(token.opEquals(Operator.OR));
     }
 
+    @Test
+    public void testSlice() {
+        Token token = Token.slice(TokenType.IDENTIFIER, "A + Bcd * 2", 4, 7, new Value(), 1, 5);
+        assertEquals("Bcd", token.getText());
+        assertSame(token.getText(), token.getText());
+
+        token.setText("X");
+        assertEquals("X", token.getText());
+    }
+
+    @Test
+    public void testGetOperator() {
+        Token token = new Token(TokenType.OPERATOR, "and", 1, 1);
+        assertEquals(Operator.AND, token.getOperator());
+        assertSame(Operator.AND, Operator.find(token, true));
+        assertFalse(token.opEquals(Operator.AND));
+
+        token.setText("-");
+        assertEquals(Operator.MINUS, token.getOperator());
+        assertTrue(token.opEquals(Operator.MINUS));
+
+        token.setText("x");
+        assertNull(token.getOperator());
+        assertNull(Operator.find(null, false));
+    }
+
+    @Test
+    public void testScratch() {
+        Token token = Token.scratch();
+        assertTrue(token.isScratch());
+
+        Value array = new Value("V");
+        array.addValueToArray(new Value().setValue("x"));
+        assertSame(token, token.reuse(TokenType.IDENTIFIER, "V", array, 1, 3));
+        assertEquals(ValueType.ARRAY, token.getValue().getType());
+        assertNotSame(array.getArray(), token.getValue().getArray());
+
+        token.reuseNumber(new BigDecimal("1.50"), 2, 4);
+        assertEquals(TokenType.NUMBER, token.getType());
+        assertEquals("1.50", token.getText());
+        assertEquals("number", token.getValue().getName());
+        assertNull(token.getValue().getArray());
+        assertEquals(2, token.getRow());
+        assertEquals(4, token.getColumn());
+
+        Token copy = token.copy();
+        assertFalse(copy.isScratch());
+        token.reuseBoolean(true, 1, 7);
+        assertEquals(new BigDecimal("1.50"), copy.asNumber());
+        assertEquals(ValueType.BOOLEAN, token.getValue().getType());
+        assertEquals("VALUE", token.getText());
+
+        token.reuse(TokenType.VALUE, "VALUE", null, 1, 1);
+        assertEquals(ValueType.UNDEFINED, token.getValue().getType());
+        assertNull(token.getValue().getName());
+    }
+
     @Test
     public void testToString() {
         Token token = new Token(TokenType.OPERATOR, "AND", 1, 25);
@@ -36,6 +36,104 @@ public class ValueTest extends UnitTestBase {
         assertEquals("name=a type=UNDEFINED str= num=0", value.toString());
     }
 
+    @Test
+    public void testArrayCopyOnWrite() {
+        Value row = new Value("row");
+        row.addValueToArray(new Value("c", "x"));
+        Value value = new Value("a");
+        value.addValueToArray(row);
+        value.addValueToArray(new Value("b", "y"));
+
+        Value copy = new Value(value);
+        assertEquals(ValueType.ARRAY, copy.getType());
+        assertSame(value.peekArray(), copy.peekArray());
+
+        // Modifying the copy gives it elements of its own, whose own elements are still shared
+        copy.getArray().get(1).setValue("z");
+        assertNotSame(value.peekArray(), copy.peekArray());
+        assertEquals("y", value.getArray().get(1).asString());
+        assertEquals("z", copy.getArray().get(1).asString());
+        assertSame(row.peekArray(), copy.peekArray().get(0).peekArray());
+
+        copy.getArray().get(0).getArray().get(0).setValue("w");
+        assertEquals("x", row.getArray().get(0).asString());
+
+        // Discarding a shared array leaves the other values' alone
+        Value other = new Value(value);
+        other.clear();
+        assertNull(other.getArray());
+        assertEquals(2, value.getArray().size());
+
+        other = new Value(value);
+        other.addValueToArray(new Value("d", "v"));
+        assertEquals(3, other.getArray().size());
+        assertEquals(2, value.getArray().size());
+    }
+
+    @Test
+    public void testViews() {
+        Value value = new Value("n", new BigDecimal("12.50"));
+        assertEquals("12.50", value.asString());
+        assertSame(value.asString(), value.asString());
+        assertEquals(12L, value.asDate().getTime());
+
+        // A date derived from a number can be modified, so it is not kept
+        value.asDate().setTime(0);
+        assertEquals(12L, value.asDate().getTime());
+        assertFalse(value.asBoolean());
 
+        Date date = new Date(1000L);
+        value.setValue(date);
+        assertSame(date, value.asDate());
+        assertEquals(new BigDecimal(1000), value.asNumber());
+        assertEquals(date.toString(), value.asString());
+
+        value.setValue(Boolean.TRUE);
+        assertEquals("1", value.asString());
+        assertEquals(BigDecimal.ONE, value.asNumber());
+        assertNull(value.asDate());
+
+        value.setValue("abc");
+        assertEquals(BigDecimal.ZERO, value.asNumber());
+        assertNull(value.asDate());
+
+        value.setValue((Object) new BigDecimal("1E+2"));
+        assertEquals(ValueType.OBJECT, value.getType());
+        assertEquals("1E+2", value.asString());
+        assertEquals(new BigDecimal("1E+2"), value.asNumber());
+
+        // The views follow the value set, not the type
+        value.setValue(BigDecimal.ONE);
+        value.setType(ValueType.STRING);
+        assertTrue(value.asBoolean());
+        assertEquals("1", value.asString());
+    }
+
+    @Test
+    public void testCopy() {
+        BigDecimal number = new BigDecimal("3.25");
+        Value value = new Value("n", number);
+        Value copy = new Value(value);
+        assertSame(number, copy.asNumber());
+        assertEquals("3.25", copy.asString());
+        assertEquals("n", copy.getName());
+
+        // Copies hold numbers as parsing their plain string would
+        copy = new Value(new Value("n", new BigDecimal("1E+2")));
+        assertEquals(0, copy.asNumber().scale());
+        assertEquals("100", copy.asString());
+
+        Date date = new Date(1000L);
+        copy = new Value(new Value("d", date));
+        assertEquals(date, copy.asDate());
+        assertNotSame(date, copy.asDate());
+        copy.asDate().setTime(2000L);
+        assertEquals(1000L, date.getTime());
+
+        copy = new Value(new Value("b", Boolean.FALSE));
+        assertEquals(ValueType.BOOLEAN, copy.getType());
+        assertEquals("0", copy.asString());
+        assertEquals(BigDecimal.ZERO, copy.asNumber());
+    }
 
 }